@@ -45,6 +45,10 @@ android {
             excludes += "/META-INF/{AL2.0,LGPL2.1}"
         }
     }
+    testOptions {
+        // Logging and SystemClock are called from the code under test.
+        unitTests.isReturnDefaultValues = true
+    }
 }
 
 dependencies {
@@ -54,6 +58,8 @@ dependencies {
     implementation(libs.material)
     implementation(libs.activity.compose)
     implementation(libs.okio)
+    // Optional, only needed by apps that use OkHttpVapNetworkFetcher.
+    compileOnly(libs.okhttp)
     implementation(platform(libs.compose.bom))
     testImplementation(libs.junit)
     androidTestImplementation(libs.androidx.test.ext.junit)
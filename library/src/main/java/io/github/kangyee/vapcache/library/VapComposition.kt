@@ -1,6 +1,7 @@
 package io.github.kangyee.vapcache.library
 
 import android.content.Context
+import android.os.SystemClock
 import androidx.compose.runtime.Composable
 import androidx.compose.runtime.LaunchedEffect
 import androidx.compose.runtime.getValue
@@ -8,39 +9,60 @@ import androidx.compose.runtime.mutableStateOf
 import androidx.compose.runtime.remember
 import androidx.compose.ui.platform.LocalContext
 import io.github.kangyee.vapcache.library.task.VapCompositionFactory
+import io.github.kangyee.vapcache.library.task.VapDownloadProgress
+import io.github.kangyee.vapcache.library.task.VapListener
 import io.github.kangyee.vapcache.library.task.VapTask
+import io.github.kangyee.vapcache.library.task.VapTaskPriority
 import kotlinx.coroutines.suspendCancellableCoroutine
+import kotlinx.coroutines.withTimeoutOrNull
 import java.io.File
 import java.io.FileInputStream
+import java.util.concurrent.TimeoutException
 import kotlin.coroutines.resume
 import kotlin.coroutines.resumeWithException
 
-private const val DefaultCacheKey = "__VapInternalDefaultCacheKey__"
+internal const val DefaultCacheKey = "__VapInternalDefaultCacheKey__"
 
+/**
+ * @param timeoutMillis 每次加载最多等待的时间，超时后以 [TimeoutException] 失败，0 表示不限制。
+ * 超时后下载不会中止，完成后仍会写入缓存。
+ */
 @Composable
 fun rememberVapComposition(
     spec: VapCompositionSpec,
     cacheKey: String? = DefaultCacheKey,
+    timeoutMillis: Long = 0,
     onRetry: suspend (failCount: Int, previousException: Throwable) -> Boolean = { _, _ -> false },
 ): VapCompositionResult {
     val context = LocalContext.current
-    val result by remember(spec) { mutableStateOf(VapCompositionResultImpl()) }
-    remember(spec, cacheKey) { vapTask(context, spec, cacheKey, isWarmingCache = true) }
-    LaunchedEffect(spec, cacheKey) {
+    // Memory cache hits are resolved right away, so the first frame already has the file.
+    val result by remember(spec) {
+        mutableStateOf(VapCompositionResultImpl(cachedVapComposition(context, spec, cacheKey)))
+    }
+    // Start the task during composition to warm the cache, the effect below awaits this same task.
+    val warmingTask = remember(spec, cacheKey) {
+        if (result.isSuccess) null else vapTask(context, spec, cacheKey, isWarmingCache = true)
+    }
+    LaunchedEffect(spec, cacheKey, timeoutMillis) {
         var exception: Throwable? = null
         var failedCount = 0
+        var task = warmingTask
         while (!result.isSuccess && (failedCount == 0 || onRetry(failedCount, exception!!))) {
             try {
                 val composition = vapComposition(
                     context,
                     spec,
                     cacheKey,
-                )
+                    task,
+                    timeoutMillis,
+                ) { result.progress = it }
                 result.complete(composition)
             } catch (e: Throwable) {
                 exception = e
                 failedCount++
             }
+            // Retries always need a new task.
+            task = null
         }
         if (!result.isComplete && exception != null) {
             result.completeExceptionally(exception)
@@ -53,19 +75,84 @@ private suspend fun vapComposition(
     context: Context,
     spec: VapCompositionSpec,
     cacheKey: String?,
+    task: VapTask<File>?,
+    timeoutMillis: Long,
+    onProgress: (VapDownloadProgress) -> Unit,
 ): File {
-    val task = requireNotNull(vapTask(context, spec, cacheKey, isWarmingCache = false)) {
-        "Unable to create load task for $spec."
+    // The animation is about to be shown, so it jumps ahead of prefetch work.
+    return awaitVapTask(context, spec, cacheKey, VapTaskPriority.HIGH, task, timeoutMillis) { it.await(onProgress) }
+}
+
+private fun cachedVapComposition(
+    context: Context,
+    spec: VapCompositionSpec,
+    cacheKey: String?,
+): File? {
+    return VapCompositionFactory.getCachedFile(
+        if (cacheKey == DefaultCacheKey) defaultCacheKey(context, spec) else cacheKey
+    )
+}
+
+/**
+ * The cache key [VapCompositionFactory] uses for [spec] when no cache key is given.
+ */
+internal fun defaultCacheKey(context: Context, spec: VapCompositionSpec): String? {
+    return when (spec) {
+        is VapCompositionSpec.RawRes -> VapCompositionFactory.rawResCacheKey(context, spec.resId)
+        is VapCompositionSpec.Url -> VapCompositionFactory.urlCacheKey(spec.url)
+        is VapCompositionSpec.VerifiedUrl -> VapCompositionFactory.urlCacheKey(spec.url)
+        is VapCompositionSpec.File -> spec.filePath
+        is VapCompositionSpec.Asset -> VapCompositionFactory.assetCacheKey(spec.assetName)
+        else -> null
     }
+}
 
-    return task.await()
+/**
+ * Subscribes to the (possibly shared) task for [spec] and suspends until it completes.
+ * Once every caller waiting for a task has been cancelled, the task itself is cancelled.
+ *
+ * If [timeoutMillis] is positive, this fails with a [TimeoutException] once that time has passed. The task bounds its
+ * connections by the time that is left and doesn't retry once no caller would wait for the retry. It isn't aborted
+ * at the deadline though, so that a download which finishes late still lands in the cache.
+ */
+internal suspend inline fun awaitVapTask(
+    context: Context,
+    spec: VapCompositionSpec,
+    cacheKey: String?,
+    priority: VapTaskPriority,
+    initialTask: VapTask<File>? = null,
+    timeoutMillis: Long = 0,
+    crossinline await: suspend (VapTask<File>) -> File,
+): File {
+    val deadline = if (timeoutMillis > 0) SystemClock.elapsedRealtime() + timeoutMillis else VapTask.NO_DEADLINE
+    var pendingTask = initialTask
+    while (true) {
+        val task = pendingTask ?: requireNotNull(vapTask(context, spec, cacheKey, isWarmingCache = false, priority)) {
+            "Unable to create load task for $spec."
+        }
+        pendingTask = null
+        // A task that was cancelled by its last subscriber right before we got it can't be
+        // joined anymore, it has already been replaced in the task cache.
+        if (!task.acquire(deadline)) continue
+        var timedOut = false
+        try {
+            if (timeoutMillis <= 0) return await(task)
+            return withTimeoutOrNull(timeoutMillis) { await(task) } ?: run {
+                timedOut = true
+                throw TimeoutException("$spec wasn't loaded within $timeoutMillis ms.")
+            }
+        } finally {
+            if (timedOut) task.detach(deadline) else task.release(deadline)
+        }
+    }
 }
 
-private fun vapTask(
+internal fun vapTask(
     context: Context,
     spec: VapCompositionSpec,
     cacheKey: String?,
     isWarmingCache: Boolean,
+    priority: VapTaskPriority = VapTaskPriority.HIGH,
 ): VapTask<File>? {
     return when (spec) {
         is VapCompositionSpec.RawRes -> {
@@ -77,11 +164,15 @@ private fun vapTask(
         }
         is VapCompositionSpec.Url -> {
             if (cacheKey == DefaultCacheKey) {
-                VapCompositionFactory.fromUrl(context, spec.url)
+                VapCompositionFactory.fromUrl(context, spec.url, VapCompositionFactory.urlCacheKey(spec.url), priority)
             } else {
-                VapCompositionFactory.fromUrl(context, spec.url, cacheKey)
+                VapCompositionFactory.fromUrl(context, spec.url, cacheKey, priority)
             }
         }
+        is VapCompositionSpec.VerifiedUrl -> {
+            val key = if (cacheKey == DefaultCacheKey) VapCompositionFactory.urlCacheKey(spec.url) else cacheKey
+            VapCompositionFactory.fromUrl(context, spec.url, key, priority, spec.sha256)
+        }
         is VapCompositionSpec.File -> {
             if (isWarmingCache) {
                 // Warming the cache is done from the main thread so we can't
@@ -104,13 +195,25 @@ private fun vapTask(
             }
         }
         else -> null
-    }
+    }?.raisePriority(priority)
 }
 
-private suspend fun <T> VapTask<T>.await(): T = suspendCancellableCoroutine { cont ->
-    addListener { c ->
+private suspend fun <T> VapTask<T>.await(
+    onProgress: (VapDownloadProgress) -> Unit,
+): T = suspendCancellableCoroutine { cont ->
+    val progressListener = VapListener<VapDownloadProgress> { if (!cont.isCompleted) onProgress(it) }
+    val listener = VapListener<T> { c ->
+        removeProgressListener(progressListener)
         if (!cont.isCompleted) cont.resume(c)
-    }.addFailureListener { e ->
+    }
+    val failureListener = VapListener<Throwable> { e ->
+        removeProgressListener(progressListener)
         if (!cont.isCompleted) cont.resumeWithException(e)
     }
+    addListener(listener).addFailureListener(failureListener).addProgressListener(progressListener)
+    cont.invokeOnCancellation {
+        removeListener(listener)
+        removeFailureListener(failureListener)
+        removeProgressListener(progressListener)
+    }
 }
\ No newline at end of file
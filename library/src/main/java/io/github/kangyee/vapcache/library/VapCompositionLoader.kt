@@ -0,0 +1,154 @@
+package io.github.kangyee.vapcache.library
+
+import android.content.Context
+import io.github.kangyee.vapcache.library.task.VapCompositionFactory
+import io.github.kangyee.vapcache.library.task.VapDownloadProgress
+import io.github.kangyee.vapcache.library.task.VapListener
+import io.github.kangyee.vapcache.library.task.VapPrefetch
+import io.github.kangyee.vapcache.library.task.VapPrefetchListener
+import io.github.kangyee.vapcache.library.task.VapResult
+import io.github.kangyee.vapcache.library.task.VapTask
+import io.github.kangyee.vapcache.library.task.VapTaskPriority
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CoroutineDispatcher
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.catch
+import kotlinx.coroutines.flow.channelFlow
+import kotlinx.coroutines.flow.conflate
+import kotlinx.coroutines.flow.flowOn
+import kotlinx.coroutines.flow.onStart
+import kotlinx.coroutines.suspendCancellableCoroutine
+import kotlinx.coroutines.withContext
+import java.io.File
+import kotlin.coroutines.resume
+import kotlin.coroutines.resumeWithException
+
+/**
+ * 加载过程中的状态，由 [vapCompositionFlow] 发出。
+ */
+sealed interface VapLoadState {
+
+    /**
+     * 正在加载
+     */
+    object Loading : VapLoadState
+
+    /**
+     * 下载进度，收集方处理不过来时只保留最新的进度
+     */
+    data class Progress(val progress: VapDownloadProgress) : VapLoadState
+
+    /**
+     * 加载成功
+     */
+    data class Success(val file: File) : VapLoadState
+
+    /**
+     * 加载失败
+     */
+    data class Failure(val error: Throwable) : VapLoadState
+
+}
+
+/**
+ * 在 [dispatcher] 上挂起加载动画文件，不依赖 Compose，也不会切换到主线程，适合在后台流程（如预加载）中使用。
+ *
+ * 与 [rememberVapComposition] 共用同一套缓存和下载任务。
+ * 取消调用方协程后，若已没有其他调用方在等待同一个任务，则会中止对应的下载。
+ *
+ * @param priority 下载任务的优先级，预加载可使用 [VapTaskPriority.LOW]
+ * @param timeoutMillis 最多等待的时间，超时后抛出 [java.util.concurrent.TimeoutException]，0 表示不限制。
+ * 超时后下载不会中止，完成后仍会写入缓存。
+ */
+suspend fun loadVapComposition(
+    context: Context,
+    spec: VapCompositionSpec,
+    cacheKey: String? = DefaultCacheKey,
+    dispatcher: CoroutineDispatcher = Dispatchers.IO,
+    priority: VapTaskPriority = VapTaskPriority.NORMAL,
+    timeoutMillis: Long = 0,
+): File = withContext(dispatcher) {
+    awaitVapTask(context, spec, cacheKey, priority, timeoutMillis = timeoutMillis) { it.awaitCompletion() }
+}
+
+/**
+ * 以 [Flow] 的形式加载动画文件，依次发出 [VapLoadState.Loading]、若干 [VapLoadState.Progress]，
+ * 以及 [VapLoadState.Success] 或 [VapLoadState.Failure]。
+ *
+ * 加载在 [dispatcher] 上进行，结果和进度都不会经过主线程；收集方的协程被取消时，加载也会随之取消。
+ * 收集方处理不过来时，多余的进度会被丢弃，只保留最新的进度。
+ *
+ * @param timeoutMillis 最多等待的时间，超时后发出以 [java.util.concurrent.TimeoutException] 失败的
+ * [VapLoadState.Failure]，0 表示不限制。超时后下载不会中止，完成后仍会写入缓存。
+ * @see loadVapComposition
+ */
+fun vapCompositionFlow(
+    context: Context,
+    spec: VapCompositionSpec,
+    cacheKey: String? = DefaultCacheKey,
+    dispatcher: CoroutineDispatcher = Dispatchers.IO,
+    priority: VapTaskPriority = VapTaskPriority.NORMAL,
+    timeoutMillis: Long = 0,
+): Flow<VapLoadState> = channelFlow {
+    val file = awaitVapTask(context, spec, cacheKey, priority, timeoutMillis = timeoutMillis) { task ->
+        val progressListener = VapListener<VapDownloadProgress> { trySend(VapLoadState.Progress(it)) }
+        // Called on the thread of the download, conflate() keeps only the latest progress.
+        task.addDirectProgressListener(progressListener)
+        try {
+            task.awaitCompletion()
+        } finally {
+            task.removeDirectProgressListener(progressListener)
+        }
+    }
+    send(VapLoadState.Success(file))
+}.conflate().onStart {
+    emit(VapLoadState.Loading)
+}.catch { e ->
+    if (e is CancellationException) throw e
+    emit(VapLoadState.Failure(e))
+}.flowOn(dispatcher)
+
+/**
+ * 批量预加载动画，适合在进入页面时提前准备好即将用到的动画。
+ *
+ * 重复的 spec 只会加载一次，已在内存中缓存或正在加载的动画不会重复下载。
+ * 最多同时加载 [maxConcurrency] 个动画，且均使用 [VapTaskPriority.LOW]，不会阻塞正在显示的动画。
+ * [VapCompositionSpec.File] 本身就在本地，会被忽略。
+ *
+ * @param listener 每个动画的结果及整体进度，在主线程回调
+ * @return 可用于取消本次预加载
+ */
+fun prefetchVapCompositions(
+    context: Context,
+    specs: List<VapCompositionSpec>,
+    maxConcurrency: Int = 3,
+    listener: VapPrefetchListener? = null,
+): VapPrefetch {
+    val appContext = context.applicationContext
+    val items = specs.mapNotNull { spec ->
+        if (spec is VapCompositionSpec.File) return@mapNotNull null
+        val cacheKey = defaultCacheKey(context, spec) ?: return@mapNotNull null
+        VapPrefetch.Item(cacheKey) {
+            vapTask(appContext, spec, cacheKey, isWarmingCache = false, VapTaskPriority.LOW)
+        }
+    }
+    return VapCompositionFactory.prefetch(items, maxConcurrency, listener)
+}
+
+/**
+ * Unlike the listeners used by [rememberVapComposition], the completion listener is called
+ * on the thread that completed the task, so resuming never goes through the main looper.
+ */
+private suspend fun <T> VapTask<T>.awaitCompletion(): T = suspendCancellableCoroutine { cont ->
+    val listener = VapListener<VapResult<T>> { result ->
+        val value = result.value
+        if (value != null) {
+            cont.resume(value)
+        } else {
+            cont.resumeWithException(result.exception ?: IllegalStateException("Task completed without a result."))
+        }
+    }
+    addCompletionListener(listener)
+    cont.invokeOnCancellation { removeCompletionListener(listener) }
+}
@@ -6,6 +6,7 @@ import androidx.compose.runtime.derivedStateOf
 import androidx.compose.runtime.getValue
 import androidx.compose.runtime.mutableStateOf
 import androidx.compose.runtime.setValue
+import io.github.kangyee.vapcache.library.task.VapDownloadProgress
 import kotlinx.coroutines.CompletableDeferred
 import java.io.File
 
@@ -39,6 +40,12 @@ interface VapCompositionResult : State<File?> {
      */
     val isLoading: Boolean
 
+    /**
+     * 下载进度，每帧最多更新一次。
+     * 尚未开始下载、或动画无需下载（如命中缓存）时为 null。
+     */
+    val progress: VapDownloadProgress?
+
     /**
      * 是否加载完成
      */
@@ -72,12 +79,17 @@ suspend fun VapCompositionResult.awaitOrNull(): File? {
     }
 }
 
+/**
+ * @param initialValue 已在内存缓存中命中的文件，不为 null 时结果直接处于成功状态
+ */
 @Stable
-internal class VapCompositionResultImpl : VapCompositionResult {
+internal class VapCompositionResultImpl(initialValue: File? = null) : VapCompositionResult {
 
-    private val compositionDeferred = CompletableDeferred<File>()
+    private val compositionDeferred = CompletableDeferred<File>().apply {
+        if (initialValue != null) complete(initialValue)
+    }
 
-    override var value: File? by mutableStateOf(null)
+    override var value: File? by mutableStateOf(initialValue)
     private set
 
     override var error by mutableStateOf<Throwable?>(null)
@@ -85,6 +97,9 @@ internal class VapCompositionResultImpl : VapCompositionResult {
 
     override val isLoading by derivedStateOf { value == null && error == null }
 
+    override var progress by mutableStateOf<VapDownloadProgress?>(null)
+    internal set
+
     override val isComplete by derivedStateOf { value != null || error != null }
 
     override val isFailure by derivedStateOf { error != null }
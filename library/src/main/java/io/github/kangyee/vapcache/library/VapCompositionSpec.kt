@@ -14,6 +14,13 @@ interface VapCompositionSpec {
     @JvmInline
     value class Url(val url: String) : VapCompositionSpec
 
+    /**
+     * 从网络加载动画，并校验其 SHA-256 摘要（十六进制）。
+     * 摘要不一致的下载会失败且不会写入缓存，摘要不一致的缓存文件会被重新下载。
+     * 与 [Url] 使用相同的缓存键。
+     */
+    data class VerifiedUrl(val url: String, val sha256: String) : VapCompositionSpec
+
     /**
      * 从本地文件加载动画。
      * 须确保有对应文件读取权限，否则可能会导致读取失败。
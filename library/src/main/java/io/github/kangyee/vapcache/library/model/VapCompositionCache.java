@@ -1,53 +1,190 @@
 package io.github.kangyee.vapcache.library.model;
 
+import android.os.SystemClock;
+
+import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.annotation.RestrictTo;
 import androidx.annotation.VisibleForTesting;
-import androidx.collection.LruCache;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
+/**
+ * Keeps the files of recently used animations in memory, bounded by the number of entries and by the total
+ * size of their files.
+ * <p>
+ * A file may be deleted behind the cache's back, e.g. by the disk cache evicting it or by the system trimming
+ * the cache directory. Files deleted by the disk cache are {@link #invalidate(File) invalidated} right away,
+ * other deletions are noticed by re-checking an entry on {@link #get(String)} once {@link #VALIDATION_INTERVAL_MS}
+ * have passed since it was last checked. A stale entry is dropped and reported as a miss, so that the
+ * animation is fetched again instead of failing to play.
+ */
 @RestrictTo(RestrictTo.Scope.LIBRARY)
 public class VapCompositionCache {
 
+    public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+    /**
+     * How long an entry is trusted before its file is checked again.
+     */
+    private static final long VALIDATION_INTERVAL_MS = 30_000L;
+
     private static final VapCompositionCache INSTANCE = new VapCompositionCache();
 
     public static VapCompositionCache getInstance() {
         return INSTANCE;
     }
 
-    private final LruCache<String, File> cache = new LruCache<>(20);
+    private final LinkedHashMap<String, Entry> cache = new LinkedHashMap<>(0, 0.75f, true);
+    private int maxEntries = 20;
+    private long maxBytes = DEFAULT_MAX_BYTES;
+    private long bytes;
 
     @VisibleForTesting
     private VapCompositionCache() {
 
     }
 
+    /**
+     * Returns the file of the given cache key, or null on a miss. The file is checked if it hasn't been
+     * for a while, so this touches the file system at most once per entry every {@link #VALIDATION_INTERVAL_MS}.
+     */
     @Nullable
     public File get(@Nullable String cacheKey) {
         if (cacheKey == null) {
             return null;
         }
-        return cache.get(cacheKey);
+        Entry entry;
+        long now = SystemClock.elapsedRealtime();
+        synchronized (this) {
+            entry = cache.get(cacheKey);
+            if (entry == null) {
+                return null;
+            }
+            if (now - entry.validatedAt < VALIDATION_INTERVAL_MS) {
+                return entry.file;
+            }
+        }
+        boolean valid = entry.file.length() == entry.length && entry.file.isFile();
+        synchronized (this) {
+            if (!valid) {
+                if (cache.get(cacheKey) == entry) {
+                    remove(cacheKey);
+                }
+                return null;
+            }
+            entry.validatedAt = now;
+        }
+        return entry.file;
     }
 
+    /**
+     * Caches the file for the given key. Its length is read here, so this should be called off the main thread.
+     */
     public void put(@Nullable String cacheKey, File file) {
         if (cacheKey == null) {
             return;
         }
-        cache.put(cacheKey, file);
+        Entry entry = new Entry(file, file.length(), SystemClock.elapsedRealtime());
+        synchronized (this) {
+            remove(cacheKey);
+            cache.put(cacheKey, entry);
+            bytes += entry.length;
+            trimToSize();
+        }
+    }
+
+    /**
+     * Drops every entry of the given file, it has been deleted.
+     */
+    public synchronized void invalidate(@NonNull File file) {
+        for (Iterator<Entry> i = cache.values().iterator(); i.hasNext(); ) {
+            Entry entry = i.next();
+            if (entry.file.equals(file)) {
+                bytes -= entry.length;
+                i.remove();
+            }
+        }
+    }
+
+    /**
+     * Returns the files currently held in memory.
+     */
+    public synchronized Collection<File> snapshot() {
+        List<File> files = new ArrayList<>(cache.size());
+        for (Entry entry : cache.values()) {
+            files.add(entry.file);
+        }
+        return files;
     }
 
-    public void clear() {
-        cache.evictAll();
+    public synchronized void clear() {
+        cache.clear();
+        bytes = 0;
     }
 
     /**
      * 设置在内存中缓存的动画数量
      * 这个值需要 > 0
      */
-    public void resize(int size) {
-        cache.resize(size);
+    public synchronized void resize(int size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        maxEntries = size;
+        trimToSize();
+    }
+
+    /**
+     * 设置在内存中缓存的动画文件的总字节数
+     * 这个值需要 > 0
+     */
+    public synchronized void setMaxBytes(long maxBytes) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("maxBytes <= 0");
+        }
+        this.maxBytes = maxBytes;
+        trimToSize();
+    }
+
+    private void remove(String cacheKey) {
+        Entry previous = cache.remove(cacheKey);
+        if (previous != null) {
+            bytes -= previous.length;
+        }
+    }
+
+    /**
+     * Evicts the least recently used entries until both bounds are met. The most recent entry is always kept,
+     * even if its file alone is larger than the byte bound.
+     */
+    private void trimToSize() {
+        Iterator<Map.Entry<String, Entry>> i = cache.entrySet().iterator();
+        while (cache.size() > 1 && (cache.size() > maxEntries || bytes > maxBytes)) {
+            Entry eldest = i.next().getValue();
+            bytes -= eldest.length;
+            i.remove();
+        }
+    }
+
+    private static final class Entry {
+
+        final File file;
+        final long length;
+        long validatedAt;
+
+        Entry(File file, long length, long now) {
+            this.file = file;
+            this.length = length;
+            this.validatedAt = now;
+        }
+
     }
 
 }
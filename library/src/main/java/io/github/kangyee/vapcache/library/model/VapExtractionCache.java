@@ -0,0 +1,170 @@
+package io.github.kangyee.vapcache.library.model;
+
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.RestrictTo;
+import androidx.annotation.WorkerThread;
+import androidx.core.content.pm.PackageInfoCompat;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+
+import io.github.kangyee.vapcache.library.logger.Logger;
+
+/**
+ * Disk cache for animations extracted from the APK (res/raw and assets).
+ * <p>
+ * Extractions are written once to a stable path and reused across launches. The directory is
+ * keyed by the app version code and install time, so an APK update invalidates every extraction
+ * at once and the previous directories are deleted by {@link #deleteStaleFiles(long)}.
+ */
+@RestrictTo(RestrictTo.Scope.LIBRARY)
+public class VapExtractionCache {
+
+    private static final String DIR_NAME = "vap_extraction_cache";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static volatile VapExtractionCache instance;
+
+    @NonNull
+    private final File rootDir;
+    @NonNull
+    private final File versionDir;
+
+    @NonNull
+    public static VapExtractionCache getInstance(@NonNull Context context) {
+        VapExtractionCache local = instance;
+        if (local == null) {
+            synchronized (VapExtractionCache.class) {
+                local = instance;
+                if (local == null) {
+                    instance = local = new VapExtractionCache(context.getApplicationContext());
+                }
+            }
+        }
+        return local;
+    }
+
+    private VapExtractionCache(@NonNull Context appContext) {
+        rootDir = new File(appContext.getCacheDir(), DIR_NAME);
+        versionDir = new File(rootDir, versionName(appContext));
+    }
+
+    /**
+     * Returns the extracted file for the given name, or null if it hasn't been extracted by this
+     * version of the app yet.
+     */
+    @Nullable
+    @WorkerThread
+    public File get(@NonNull String name) {
+        File file = new File(versionDir, name);
+        return file.isFile() ? file : null;
+    }
+
+    /**
+     * Writes the stream to the stable location for the given name. The data is first written to a
+     * uniquely named temporary file and then renamed, so concurrent extractions of the same
+     * animation never observe a partially written file.
+     * <p>
+     * Does not close the stream.
+     */
+    @NonNull
+    @WorkerThread
+    public File put(@NonNull String name, @NonNull InputStream stream) throws IOException {
+        if (!versionDir.isDirectory() && !versionDir.mkdirs() && !versionDir.isDirectory()) {
+            throw new IOException("Unable to create " + versionDir.getAbsolutePath());
+        }
+        File file = new File(versionDir, name);
+        File tempFile = new File(versionDir, name + "." + UUID.randomUUID() + TEMP_SUFFIX);
+        try {
+            try (OutputStream output = new FileOutputStream(tempFile)) {
+                byte[] buffer = new byte[8 * 1024];
+                int read;
+                while ((read = stream.read(buffer)) != -1) {
+                    output.write(buffer, 0, read);
+                }
+                output.flush();
+            }
+            if (!tempFile.renameTo(file) && !file.isFile()) {
+                throw new IOException("Unable to rename " + tempFile.getAbsolutePath() + " to " + file.getAbsolutePath());
+            }
+        } finally {
+            if (tempFile.exists()) {
+                tempFile.delete();
+            }
+        }
+        return file;
+    }
+
+    /**
+     * Deletes extractions made by previous versions of the app, and temporary files of this version that were left
+     * behind by a crash during an extraction.
+     *
+     * @param lastModifiedBefore only temporary files last modified before this time are deleted, so that
+     *                           extractions in progress are left alone.
+     * @return the number of deleted files.
+     */
+    @WorkerThread
+    public int deleteStaleFiles(long lastModifiedBefore) {
+        File[] versions = rootDir.listFiles();
+        if (versions == null) {
+            return 0;
+        }
+        int deleted = 0;
+        for (File dir : versions) {
+            if (dir.equals(versionDir)) {
+                deleted += deleteTempFiles(dir, lastModifiedBefore);
+                continue;
+            }
+            deleted += deleteRecursively(dir);
+        }
+        return deleted;
+    }
+
+    private static int deleteTempFiles(File dir, long lastModifiedBefore) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return 0;
+        }
+        int deleted = 0;
+        for (File file : files) {
+            if (file.getName().endsWith(TEMP_SUFFIX) && file.lastModified() < lastModifiedBefore && file.delete()) {
+                deleted++;
+            }
+        }
+        return deleted;
+    }
+
+    private static int deleteRecursively(File file) {
+        int deleted = 0;
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleted += deleteRecursively(child);
+            }
+        }
+        if (file.delete() && children == null) {
+            deleted++;
+        }
+        return deleted;
+    }
+
+    private static String versionName(Context context) {
+        try {
+            PackageInfo info = context.getPackageManager().getPackageInfo(context.getPackageName(), 0);
+            return "v" + PackageInfoCompat.getLongVersionCode(info) + "_" + info.lastUpdateTime;
+        } catch (PackageManager.NameNotFoundException | RuntimeException e) {
+            Logger.INSTANCE.warning("Unable to read the package version, extractions are keyed by \"unknown\".", e);
+            return "unknown";
+        }
+    }
+
+}
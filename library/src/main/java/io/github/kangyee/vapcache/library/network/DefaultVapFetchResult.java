@@ -30,6 +30,18 @@ public class DefaultVapFetchResult implements VapFetchResult {
         }
     }
 
+    @Override public int responseCode() {
+        try {
+            return connection.getResponseCode();
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    @Nullable @Override public String header(@NonNull String name) {
+        return connection.getHeaderField(name);
+    }
+
     @NonNull @Override public InputStream bodyByteStream() throws IOException {
         return connection.getInputStream();
     }
@@ -6,16 +6,66 @@ import androidx.annotation.RestrictTo;
 import java.io.IOException;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.util.Collections;
+import java.util.Map;
 
+/**
+ * Opens an {@link HttpURLConnection} per request. Connecting and every read are bounded by timeouts, so a stalled
+ * connection fails with a {@link java.net.SocketTimeoutException} instead of holding its thread forever. The read
+ * timeout covers the wait for the response as well as every stall while the body is read.
+ */
 @RestrictTo(RestrictTo.Scope.LIBRARY)
 public class DefaultVapNetworkFetcher implements VapNetworkFetcher {
 
+    public static final int DEFAULT_CONNECT_TIMEOUT_MS = 15_000;
+    public static final int DEFAULT_READ_TIMEOUT_MS = 20_000;
+
+    private final int connectTimeoutMs;
+    private final int readTimeoutMs;
+
+    public DefaultVapNetworkFetcher() {
+        this(DEFAULT_CONNECT_TIMEOUT_MS, DEFAULT_READ_TIMEOUT_MS);
+    }
+
+    /**
+     * @param connectTimeoutMs how long connecting may take, must be {@literal >} 0.
+     * @param readTimeoutMs    how long to wait for the response and for every chunk of the body, must be {@literal >} 0.
+     */
+    public DefaultVapNetworkFetcher(int connectTimeoutMs, int readTimeoutMs) {
+        if (connectTimeoutMs <= 0 || readTimeoutMs <= 0) {
+            throw new IllegalArgumentException("connectTimeoutMs and readTimeoutMs must be > 0");
+        }
+        this.connectTimeoutMs = connectTimeoutMs;
+        this.readTimeoutMs = readTimeoutMs;
+    }
+
     @Override
     @NonNull
     public VapFetchResult fetchSync(@NonNull String url) throws IOException {
+        return fetchSync(url, Collections.emptyMap());
+    }
+
+    @Override
+    @NonNull
+    public VapFetchResult fetchSync(@NonNull String url, @NonNull Map<String, String> headers) throws IOException {
         final HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
         connection.setRequestMethod("GET");
+        connection.setConnectTimeout(connectTimeoutMs);
+        connection.setReadTimeout(readTimeoutMs);
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            connection.setRequestProperty(header.getKey(), header.getValue());
+        }
         connection.connect();
         return new DefaultVapFetchResult(connection);
     }
+
+    @Override
+    @NonNull
+    public VapNetworkFetcher withTimeout(long timeoutMs) {
+        if (timeoutMs >= connectTimeoutMs && timeoutMs >= readTimeoutMs) {
+            return this;
+        }
+        return new DefaultVapNetworkFetcher((int) Math.min(connectTimeoutMs, timeoutMs),
+                (int) Math.min(readTimeoutMs, timeoutMs));
+    }
 }
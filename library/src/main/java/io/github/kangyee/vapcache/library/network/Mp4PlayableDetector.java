@@ -0,0 +1,149 @@
+package io.github.kangyee.vapcache.library.network;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Follows the top-level boxes of an MP4 file while it is being written and tells when playback can start:
+ * the {@code moov} box is complete and at least {@code minMediaBytes} of the {@code mdat} box are on disk.
+ * <p>
+ * Only box headers are inspected, the data is fed through as it is written and never copied.
+ * Files whose {@code moov} box comes after the media data become playable once the {@code moov} box is complete,
+ * which is usually at the very end of the download.
+ * <p>
+ * The same walk over the box headers tells whether a file on disk is {@link #isComplete(File) complete}.
+ */
+final class Mp4PlayableDetector {
+
+    private static final int FTYP = 0x66747970;
+    private static final int MOOV = 0x6d6f6f76;
+    private static final int MDAT = 0x6d646174;
+
+    private final long minMediaBytes;
+    private final byte[] header = new byte[16];
+    private int headerLength;
+    /**
+     * The offset of the next top-level box header, or -1 once the last box has been reached.
+     */
+    private long nextBox;
+    private long written;
+    private long moovEnd = -1;
+    private long mdatStart = -1;
+    private boolean invalid;
+
+    Mp4PlayableDetector(long minMediaBytes) {
+        this.minMediaBytes = minMediaBytes;
+    }
+
+    /**
+     * Creates a detector for a download that continues the first {@code length} bytes of the given file.
+     * Only the box headers within that range are read.
+     */
+    static Mp4PlayableDetector resume(File file, long length, long minMediaBytes) throws IOException {
+        Mp4PlayableDetector detector = new Mp4PlayableDetector(minMediaBytes);
+        byte[] buffer = new byte[16];
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            while (detector.written < length) {
+                long next = detector.nextHeaderByte();
+                if (next < 0 || next >= length) {
+                    detector.written = length;
+                    break;
+                }
+                detector.written = next;
+                randomAccessFile.seek(next);
+                int read = randomAccessFile.read(buffer, 0, (int) Math.min(buffer.length, length - next));
+                if (read <= 0) {
+                    detector.invalid = true;
+                    break;
+                }
+                detector.update(buffer, 0, read);
+            }
+        } finally {
+            randomAccessFile.close();
+        }
+        return detector;
+    }
+
+    /**
+     * Feeds the next bytes of the file.
+     *
+     * @return true if the file written so far is playable.
+     */
+    boolean update(byte[] buffer, int offset, int length) {
+        long start = written;
+        long end = start + length;
+        written = end;
+        while (!invalid && nextBox >= 0 && nextBox + headerLength < end) {
+            int required = headerLength >= 8 && readInt(0) == 1 ? 16 : 8;
+            while (headerLength < required && nextBox + headerLength < end) {
+                header[headerLength] = buffer[offset + (int) (nextBox + headerLength - start)];
+                headerLength++;
+            }
+            if (headerLength < required) {
+                break;
+            }
+            if (required == 8 && readInt(0) == 1) {
+                // A 64-bit size follows the type.
+                continue;
+            }
+            onBox(required == 16 ? readLong(8) : readInt(0) & 0xffffffffL, readInt(4), required);
+        }
+        return isPlayable();
+    }
+
+    /**
+     * Returns true if the file starts with an {@code ftyp} box, contains a {@code moov} box and its top-level
+     * boxes add up to exactly the length of the file. Only box headers are read, so this is cheap enough
+     * to be checked before every use of a cached file.
+     */
+    static boolean isComplete(File file) {
+        long length = file.length();
+        try {
+            Mp4PlayableDetector detector = resume(file, length, 1);
+            return !detector.invalid && detector.moovEnd >= 0 && detector.moovEnd <= length && detector.mdatStart >= 0
+                    && (detector.nextBox < 0 || (detector.nextBox == length && detector.headerLength == 0));
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    boolean isPlayable() {
+        if (invalid || moovEnd < 0 || written < moovEnd || mdatStart < 0) {
+            return false;
+        }
+        return mdatStart < moovEnd || written - mdatStart >= minMediaBytes;
+    }
+
+    private long nextHeaderByte() {
+        return nextBox < 0 || invalid ? -1 : nextBox + headerLength;
+    }
+
+    private void onBox(long size, int type, int headerSize) {
+        if ((nextBox == 0 && type != FTYP) || (size != 0 && size < headerSize)) {
+            invalid = true;
+            return;
+        }
+        if (type == MOOV) {
+            moovEnd = size == 0 ? Long.MAX_VALUE : nextBox + size;
+        } else if (type == MDAT && mdatStart < 0) {
+            mdatStart = nextBox + headerSize;
+        }
+        // A size of 0 means the box extends to the end of the file.
+        nextBox = size == 0 ? -1 : nextBox + size;
+        headerLength = 0;
+    }
+
+    private int readInt(int offset) {
+        return (header[offset] & 0xff) << 24
+                | (header[offset + 1] & 0xff) << 16
+                | (header[offset + 2] & 0xff) << 8
+                | (header[offset + 3] & 0xff);
+    }
+
+    private long readLong(int offset) {
+        return (readInt(offset) & 0xffffffffL) << 32 | (readInt(offset + 4) & 0xffffffffL);
+    }
+
+}
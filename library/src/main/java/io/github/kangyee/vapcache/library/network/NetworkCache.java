@@ -1,137 +1,792 @@
 package io.github.kangyee.vapcache.library.network;
 
-import android.util.Pair;
-
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.annotation.RestrictTo;
 import androidx.annotation.WorkerThread;
+import androidx.collection.LruCache;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import io.github.kangyee.vapcache.library.logger.Logger;
+import io.github.kangyee.vapcache.library.model.VapCompositionCache;
+import io.github.kangyee.vapcache.library.task.VapCancellationToken;
+import io.github.kangyee.vapcache.library.task.VapDownloadReporter;
+import okio.BufferedSink;
+import okio.BufferedSource;
+import okio.Okio;
 
+/**
+ * Files are spread over two levels of shard directories named after the first two hex digits of their key,
+ * e.g. {@code 4/a/vap_cache_4a1f0c2e9b7d83a56f1e0d4c2b9a7e63.mp4.meta}, so that no directory grows large enough to slow down the file system.
+ * A url's key is a fixed-length digest of the file name used before the cache was sharded, which lets
+ * existing caches be {@link #loadIndexAsync() moved} in place.
+ */
 @RestrictTo(RestrictTo.Scope.LIBRARY)
 public class NetworkCache {
 
+    /**
+     * The default number of bytes the disk cache may hold before least recently used
+     * animations get evicted.
+     */
+    public static final long DEFAULT_MAX_SIZE = 200L * 1024 * 1024;
+
+    private static final String FILE_PREFIX = "vap_cache_";
+
+    /**
+     * Sidecar of a partially downloaded temp file, holds the validator used to resume it.
+     */
+    private static final String RESUME_SUFFIX = ".resume";
+
+    /**
+     * Sidecar of a committed cache file, holds its validators and expiry.
+     */
+    private static final String METADATA_SUFFIX = ".meta";
+
+    /**
+     * Suffix of cache files that turned out to be corrupt. They are kept until the next sweep for inspection.
+     */
+    private static final String CORRUPT_SUFFIX = ".corrupt";
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    /**
+     * The number of digest bytes in a url's key, which is twice as many hex digits long.
+     */
+    private static final int KEY_BYTES = 16;
+
+    /**
+     * Cache file names of recently looked up urls, deriving them is not free. It grows with the index, so that a
+     * cache hit never has to derive the name again.
+     */
+    private static final LruCache<String, String> CACHE_FILE_NAMES = new LruCache<>(256);
+
     @NonNull
     private final VapNetworkCacheProvider cacheProvider;
+    private final long initialMaxSize;
+
+    @Nullable
+    private volatile VapDiskLruCache diskLruCache;
+
+    private final VapCacheIndex index = new VapCacheIndex();
+    private final AtomicBoolean indexLoadStarted = new AtomicBoolean(false);
+
+    /**
+     * The cache directory once it is known to exist, so lookups don't have to check it every time.
+     */
+    @Nullable
+    private volatile File parentDir;
 
     public NetworkCache(@NonNull VapNetworkCacheProvider cacheProvider) {
+        this(cacheProvider, DEFAULT_MAX_SIZE);
+    }
+
+    public NetworkCache(@NonNull VapNetworkCacheProvider cacheProvider, long maxSize) {
         this.cacheProvider = cacheProvider;
+        this.initialMaxSize = maxSize;
+    }
+
+    /**
+     * Set the maximum number of bytes kept in the disk cache.
+     * Least recently used animations will be evicted in the background until the cache fits.
+     */
+    public void setMaxSize(long maxSize) {
+        diskLruCache().setMaxSize(maxSize);
     }
 
     public void clear() {
+        diskLruCache().reset();
+        index.clear();
+        parentDir = null;
+        deleteRecursively(cacheProvider.getCacheDir());
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * Reads the journal and the metadata of every cached animation on a background thread, after that
+     * looking up an animation is answered from memory. Lookups made before the index is loaded use the
+     * file system instead. Only the first call has an effect.
+     * <p>
+     * Animations cached before the cache was sharded are moved into their shard directories first.
+     * Lookups made during the move may miss.
+     */
+    public void loadIndexAsync() {
+        if (!indexLoadStarted.compareAndSet(false, true)) {
+            return;
+        }
+        Thread thread = new Thread(() -> {
+            try {
+                if (moveUnshardedFiles(parentDir())) {
+                    diskLruCache().rescan();
+                }
+                if (diskLruCache().initialize()) {
+                    index.load(parentDir());
+                    fitCacheFileNames(index.size());
+                }
+            } catch (Throwable e) {
+                Logger.INSTANCE.warning("Unable to load the vap disk cache index.", e);
+            }
+        }, "VapCacheIndex");
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Forgets cached animations whose files have been deleted by someone else, e.g. the system trimming the
+     * cache directory. Lookups trust the index, so this should run periodically.
+     *
+     * @return the number of forgotten animations.
+     */
+    @WorkerThread
+    public int removeMissingFiles() {
+        return diskLruCache().removeMissingFiles();
+    }
+
+    /**
+     * Deletes temporary files of downloads that never completed. Partial downloads that can be resumed
+     * are kept until {@code resumableLastModifiedBefore}, everything else until {@code lastModifiedBefore}.
+     *
+     * @return the number of deleted files.
+     */
+    @WorkerThread
+    public int deleteStaleTempFiles(long lastModifiedBefore, long resumableLastModifiedBefore) {
+        int deleted = 0;
+        for (File file : listShardedFiles(parentDir())) {
+            String name = file.getName();
+            if (!name.startsWith(FILE_PREFIX) && !name.startsWith(VapBlobStore.BLOB_PREFIX)) {
+                continue;
+            }
+            File shardDir = file.getParentFile();
+            if (name.endsWith(FileExtension.MP4.tempExtension())) {
+                File resumeFile = new File(shardDir, name + RESUME_SUFFIX);
+                long deadline = resumeFile.exists() ? resumableLastModifiedBefore : lastModifiedBefore;
+                if (file.lastModified() < deadline && file.delete()) {
+                    resumeFile.delete();
+                    deleted++;
+                }
+            } else if (name.endsWith(CORRUPT_SUFFIX)) {
+                if (file.lastModified() < lastModifiedBefore && file.delete()) {
+                    deleted++;
+                }
+            } else if (name.endsWith(RESUME_SUFFIX)) {
+                File tempFile = new File(shardDir, name.substring(0, name.length() - RESUME_SUFFIX.length()));
+                if (!tempFile.exists() && file.delete()) {
+                    deleted++;
+                }
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * Deletes cache entries that expired before the given time and haven't been revalidated since,
+     * as well as metadata whose cache file or blob is gone.
+     *
+     * @return the number of deleted entries.
+     */
+    @WorkerThread
+    public int deleteExpiredEntries(long expiredBefore) {
         File parentDir = parentDir();
-        if (parentDir.exists()) {
-            File[] files = parentDir.listFiles();
-            if (files != null && files.length > 0) {
-                for (File file : parentDir.listFiles()) {
+        int deleted = 0;
+        for (File file : listShardedFiles(parentDir)) {
+            String name = file.getName();
+            if (!isMetadataFileName(name)) {
+                continue;
+            }
+            String cacheFileName = cacheFileNameForMetadata(name);
+            Metadata metadata = readMetadata(file);
+            boolean expired = metadata != null && metadata.expiresAt < expiredBefore;
+            File cacheFile = new File(file.getParentFile(), cacheFileName);
+            if (cacheFile.exists()) {
+                if (expired) {
+                    Logger.INSTANCE.debug("Deleting expired cache entry " + cacheFileName);
+                    diskLruCache().remove(journalKey(cacheFile));
+                    deleted++;
+                }
+            } else if (metadata == null || metadata.sha256 == null
+                    || !VapBlobStore.blobFile(parentDir, metadata.sha256).exists()) {
+                file.delete();
+                index.removeMetadata(cacheFileName);
+            } else if (expired) {
+                Logger.INSTANCE.debug("Deleting expired cache entry " + cacheFileName);
+                synchronized (blobLock()) {
                     file.delete();
+                    index.removeMetadata(cacheFileName);
+                    releaseBlob(parentDir, metadata.sha256, cacheFileName);
                 }
+                deleted++;
             }
-            parentDir.delete();
         }
+        return deleted;
     }
 
     /**
-     * If the animation doesn't exist in the cache, null will be returned.
-     * <p>
-     * Once the animation is successfully parsed, {@link #renameTempFile(String, FileExtension)} must be
-     * called to move the file from a temporary location to its permanent cache location so it can
-     * be used in the future.
+     * Returns the interrupted download of the given url if it can be resumed with a range request,
+     * or null if it has to be fetched from the start.
      */
     @Nullable
     @WorkerThread
-    Pair<FileExtension, InputStream> fetch(String url) {
-        File cachedFile;
+    PartialDownload partialDownload(String url, FileExtension extension) {
+        File file = cacheFile(url, extension, true);
+        File resumeFile = new File(file.getAbsolutePath() + RESUME_SUFFIX);
+        long length = file.length();
+        if (length <= 0 || !resumeFile.exists()) {
+            return null;
+        }
         try {
-            cachedFile = getCachedFile(url);
-        } catch (FileNotFoundException e) {
+            BufferedSource source = Okio.buffer(Okio.source(resumeFile));
+            try {
+                String validator = source.readUtf8Line();
+                if (validator == null || validator.isEmpty()) {
+                    return null;
+                }
+                return new PartialDownload(length, validator);
+            } finally {
+                source.close();
+            }
+        } catch (IOException e) {
+            Logger.INSTANCE.debug("Unable to read resume data for " + url, e);
             return null;
         }
+    }
+
+    /**
+     * Deletes the interrupted download of the given url so the next attempt starts from scratch.
+     */
+    @WorkerThread
+    void discardPartialDownload(String url, FileExtension extension) {
+        File file = cacheFile(url, extension, true);
+        file.delete();
+        new File(file.getAbsolutePath() + RESUME_SUFFIX).delete();
+    }
+
+    /**
+     * If the animation doesn't exist in the cache, null will be returned.
+     * <p>
+     * The returned file is the permanent cache entry itself, callers can hand it to the player
+     * directly without copying it to another location first.
+     */
+    @Nullable
+    @WorkerThread
+    File fetch(String url) {
+        Metadata metadata = getMetadata(url);
+        File cachedFile = getCachedFile(url, metadata);
         if (cachedFile == null) {
             return null;
         }
+        if (!index.isIntact(cachedFile.getName())) {
+            if (!isIntact(metadata, cachedFile)) {
+                quarantine(cachedFile);
+                return null;
+            }
+            index.setIntact(cachedFile.getName());
+        }
 
-        FileInputStream inputStream;
-        try {
-            inputStream = new FileInputStream(cachedFile);
-        } catch (FileNotFoundException e) {
+        String journalKey = journalKey(cachedFile);
+        if (!diskLruCache().recordRead(journalKey)) {
+            synchronized (blobLock()) {
+                if (!cachedFile.exists()) {
+                    // Evicted since it was looked up.
+                    return null;
+                }
+                diskLruCache().recordWrite(journalKey, cachedFile.length());
+            }
+        }
+        Logger.INSTANCE.debug("Cache hit for " + url + " at " + cachedFile.getAbsolutePath());
+        return cachedFile;
+    }
+
+    /**
+     * Returns the temporary file that {@link #writeTempCacheFile(String, InputStream, FileExtension)} writes to.
+     */
+    File getTempFile(String url, FileExtension extension) {
+        return cacheFile(url, extension, true);
+    }
+
+    /**
+     * A cache file is intact if it has the length recorded when it was committed and a complete MP4 box structure.
+     * Truncated files that were committed before lengths were verified fail the second check.
+     */
+    private static boolean isIntact(@Nullable Metadata metadata, File cachedFile) {
+        if (metadata != null && metadata.length >= 0 && metadata.length != cachedFile.length()) {
+            Logger.INSTANCE.warning("Cache file " + cachedFile + " has " + cachedFile.length()
+                    + " bytes, expected " + metadata.length + ".");
+            return false;
+        }
+        if (!Mp4PlayableDetector.isComplete(cachedFile)) {
+            Logger.INSTANCE.warning("Cache file " + cachedFile + " is not a complete mp4 file.");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Moves a corrupt cache file out of the way, so the animation is downloaded again.
+     * Every url that points at a corrupt blob is downloaded again.
+     */
+    @WorkerThread
+    void quarantine(File cachedFile) {
+        File corruptFile = new File(cachedFile.getAbsolutePath() + CORRUPT_SUFFIX);
+        synchronized (blobLock()) {
+            if (!cachedFile.renameTo(corruptFile)) {
+                cachedFile.delete();
+            }
+            diskLruCache().remove(journalKey(cachedFile));
+        }
+    }
+
+    /**
+     * Returns the validators and expiry of the cached animation for the given url, or null if they are unknown.
+     * Entries without metadata were cached before it was recorded and never expire.
+     */
+    @Nullable
+    @WorkerThread
+    Metadata getMetadata(String url) {
+        String cacheFileName = cacheFileNameForUrl(url);
+        if (index.isLoaded()) {
+            return index.getMetadata(cacheFileName);
+        }
+        File file = metadataFile(cacheFile(url, FileExtension.MP4, false));
+        if (!file.exists()) {
             return null;
         }
+        return readMetadata(file);
+    }
 
-        Logger.INSTANCE.debug("Cache hit for " + url + " at " + cachedFile.getAbsolutePath());
-        return new Pair<>(FileExtension.MP4, (InputStream) inputStream);
+    /**
+     * Records the validators and expiry of the cached animation for the given url. This only refreshes an entry
+     * committed by {@link #commitTempFile(String, FileExtension, Metadata)}, the digest of the metadata must
+     * still name the blob of the entry.
+     */
+    @WorkerThread
+    void putMetadata(String url, Metadata metadata) {
+        String cacheFileName = cacheFileNameForUrl(url);
+        File file = metadataFile(cacheFile(url, FileExtension.MP4, false));
+        File tempFile = new File(file.getAbsolutePath() + ".tmp");
+        try {
+            BufferedSink sink = Okio.buffer(Okio.sink(tempFile));
+            try {
+                sink.writeUtf8(Long.toString(metadata.expiresAt)).writeUtf8("\n");
+                sink.writeUtf8(metadata.eTag != null ? metadata.eTag : "").writeUtf8("\n");
+                sink.writeUtf8(metadata.lastModified != null ? metadata.lastModified : "").writeUtf8("\n");
+                sink.writeUtf8(Long.toString(metadata.length)).writeUtf8("\n");
+                sink.writeUtf8(metadata.sha256 != null ? metadata.sha256 : "").writeUtf8("\n");
+            } finally {
+                sink.close();
+            }
+            if (!tempFile.renameTo(file)) {
+                throw new IOException("Unable to rename " + tempFile);
+            }
+            index.putMetadata(cacheFileName, metadata);
+            fitCacheFileNames(index.size());
+        } catch (IOException e) {
+            Logger.INSTANCE.debug("Unable to write cache metadata for " + url, e);
+            tempFile.delete();
+        }
+    }
+
+    @Nullable
+    static Metadata readMetadata(File file) {
+        try {
+            BufferedSource source = Okio.buffer(Okio.source(file));
+            try {
+                String expiresAt = source.readUtf8Line();
+                String eTag = source.readUtf8Line();
+                String lastModified = source.readUtf8Line();
+                // Metadata written before lengths and digests were recorded ends here.
+                String length = source.readUtf8Line();
+                String sha256 = source.readUtf8Line();
+                if (expiresAt == null) {
+                    return null;
+                }
+                return new Metadata(Long.parseLong(expiresAt),
+                        eTag == null || eTag.isEmpty() ? null : eTag,
+                        lastModified == null || lastModified.isEmpty() ? null : lastModified,
+                        length == null || length.isEmpty() ? -1 : Long.parseLong(length),
+                        sha256 == null || sha256.isEmpty() ? null : sha256);
+            } finally {
+                source.close();
+            }
+        } catch (IOException | NumberFormatException e) {
+            Logger.INSTANCE.debug("Unable to read cache metadata " + file, e);
+            return null;
+        }
     }
 
     /**
      * Writes an InputStream from a network response to a temporary file. If the file successfully parses
-     * to an composition, {@link #renameTempFile(String, FileExtension)} should be called to move the file
+     * to an composition, {@link #commitTempFile(String, FileExtension, Metadata)} should be called to move the file
      * to its final location for future cache hits.
      */
     File writeTempCacheFile(String url, InputStream stream, FileExtension extension) throws IOException {
-        String fileName = filenameForUrl(url, extension, true);
-        File file = new File(parentDir(), fileName);
+        return writeTempCacheFile(url, stream, extension, null);
+    }
+
+    /**
+     * Same as {@link #writeTempCacheFile(String, InputStream, FileExtension)}, but stops as soon as the
+     * token is cancelled. The temporary file is deleted if the stream couldn't be written completely.
+     */
+    File writeTempCacheFile(String url, InputStream stream, FileExtension extension,
+                            @Nullable VapCancellationToken cancellationToken) throws IOException {
+        return writeTempCacheFile(url, stream, extension, cancellationToken, false, null, null);
+    }
+
+    /**
+     * Writes a network response to the temporary file of the given url.
+     *
+     * @param append    true if the stream continues a {@link #partialDownload(String, FileExtension) partial download}.
+     * @param validator the ETag or Last-Modified value of the response. If set, the temporary file is kept when the
+     *                  stream fails or is cancelled, so the download can be resumed with a range request later.
+     *                  Otherwise an incomplete file is deleted.
+     * @param downloadReporter receives the number of bytes on disk after every buffer.
+     */
+    File writeTempCacheFile(String url, InputStream stream, FileExtension extension,
+                            @Nullable VapCancellationToken cancellationToken, boolean append,
+                            @Nullable String validator, @Nullable VapDownloadReporter downloadReporter)
+            throws IOException {
+        File file = cacheFile(url, extension, true);
+        ensureDirectory(file.getParentFile());
+        File resumeFile = new File(file.getAbsolutePath() + RESUME_SUFFIX);
+        if (validator != null) {
+            writeResumeFile(resumeFile, validator);
+        } else {
+            resumeFile.delete();
+        }
+        boolean completed = false;
         try {
-            OutputStream output = new FileOutputStream(file);
+            FileOutputStream output = new FileOutputStream(file, append);
             //noinspection TryFinallyCanBeTryWithResources
             try {
-                byte[] buffer = new byte[1024];
+                byte[] buffer = new byte[8 * 1024];
                 int read;
+                long written = append ? file.length() : 0;
 
                 while ((read = stream.read(buffer)) != -1) {
+                    if (cancellationToken != null) {
+                        cancellationToken.throwIfCancelled();
+                    }
                     output.write(buffer, 0, read);
+                    written += read;
+                    if (downloadReporter != null) {
+                        downloadReporter.reportProgress(written);
+                    }
                 }
 
                 output.flush();
+                // Make sure the data survives a crash before the file can be renamed into place.
+                output.getFD().sync();
+                completed = true;
             } finally {
                 output.close();
             }
         } finally {
-            stream.close();
+            try {
+                stream.close();
+            } finally {
+                if (completed) {
+                    resumeFile.delete();
+                } else if (validator == null || file.length() == 0) {
+                    file.delete();
+                    resumeFile.delete();
+                } else {
+                    Logger.INSTANCE.debug("Keeping " + file.length() + " bytes of " + url + " to resume later.");
+                }
+            }
         }
         return file;
     }
 
+    /**
+     * Creates the temporary file of the given url with its final length and opens it for positional writes,
+     * so that several ranges of the response can be written concurrently. Any partial download of the url is
+     * discarded first.
+     * <p>
+     * Once every range has been written, {@link #commitTempFile(String, FileExtension, Metadata)} commits the file.
+     * If the download fails, {@link #discardPartialDownload(String, FileExtension)} should be called instead,
+     * the unwritten ranges make the file unusable for a resume.
+     */
+    @WorkerThread
+    FileChannel openTempFileChannel(String url, FileExtension extension, long length) throws IOException {
+        discardPartialDownload(url, extension);
+        File file = cacheFile(url, extension, true);
+        ensureDirectory(file.getParentFile());
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            randomAccessFile.setLength(length);
+        } catch (IOException e) {
+            randomAccessFile.close();
+            file.delete();
+            throw e;
+        }
+        return randomAccessFile.getChannel();
+    }
+
+    private static void writeResumeFile(File resumeFile, String validator) {
+        try {
+            BufferedSink sink = Okio.buffer(Okio.sink(resumeFile));
+            try {
+                sink.writeUtf8(validator).writeUtf8("\n");
+            } finally {
+                sink.close();
+            }
+        } catch (IOException e) {
+            Logger.INSTANCE.debug("Unable to write resume data to " + resumeFile, e);
+            resumeFile.delete();
+        }
+    }
+
     /**
      * If the file created by {@link #writeTempCacheFile(String, InputStream, FileExtension)} was successfully parsed,
-     * this should be called to remove the temporary part of its name which will allow it to be a cache hit in the future.
+     * this should be called to move it into the blob of its content, which will allow it to be a cache hit in the
+     * future. Urls whose animations have the same content share the blob.
+     * The rename atomically replaces a previous version of the file, readers never see a partially written file.
+     *
+     * @param metadata the validators and expiry of the response. If it has a digest, the file has already been
+     *                 verified against it and isn't read again.
+     * @return the permanent cache file.
+     * @throws IOException if the file could not be renamed. The temporary file is deleted in that case.
+     */
+    @WorkerThread
+    File commitTempFile(String url, FileExtension extension, Metadata metadata) throws IOException {
+        File parentDir = parentDir();
+        File file = cacheFile(url, extension, true);
+        String sha256;
+        try {
+            sha256 = metadata.sha256 != null ? metadata.sha256 : NetworkFetcher.sha256(file);
+        } catch (IOException e) {
+            file.delete();
+            throw e;
+        }
+        String entryName = cacheFileNameForUrl(url);
+        File blobFile;
+        synchronized (blobLock()) {
+            Metadata previous = getMetadata(url);
+            blobFile = VapBlobStore.commit(parentDir, file, sha256);
+            Logger.INSTANCE.debug("Committed " + url + " to " + blobFile);
+            File legacyFile = cacheFile(url, extension, false);
+            if (legacyFile.exists()) {
+                // Cached before blobs were introduced, it would shadow the blob.
+                diskLruCache().remove(journalKey(legacyFile));
+            } else if (previous != null && previous.sha256 != null && !previous.sha256.equals(sha256)) {
+                releaseBlob(parentDir, previous.sha256, entryName);
+            }
+            VapBlobStore.addReference(blobFile, entryName);
+            diskLruCache().recordWrite(journalKey(blobFile), blobFile.length());
+            putMetadata(url, new Metadata(metadata.expiresAt, metadata.eTag, metadata.lastModified,
+                    blobFile.length(), sha256));
+        }
+        return blobFile;
+    }
+
+    /**
+     * Points the url at the cached blob with the given digest, so that the same content behind a new url, e.g. a
+     * rotated signed url, isn't downloaded again. The entry never expires, its content is pinned by the digest.
+     *
+     * @return the blob, or null if no intact blob with that digest is cached.
+     */
+    @Nullable
+    @WorkerThread
+    File adoptBlob(String url, String sha256) {
+        String digest = sha256.toLowerCase(Locale.US);
+        File parentDir = parentDir();
+        File blobFile = VapBlobStore.blobFile(parentDir, digest);
+        String entryName = cacheFileNameForUrl(url);
+        synchronized (blobLock()) {
+            boolean indexed = index.isLoaded() && diskLruCache().initialize();
+            if (!(indexed ? diskLruCache().contains(journalKey(blobFile)) : blobFile.exists())) {
+                return null;
+            }
+            if (!index.isIntact(blobFile.getName())) {
+                if (!isIntact(null, blobFile)) {
+                    quarantine(blobFile);
+                    return null;
+                }
+                index.setIntact(blobFile.getName());
+            }
+            Metadata previous = getMetadata(url);
+            if (previous != null && previous.sha256 != null && !previous.sha256.equals(digest)) {
+                releaseBlob(parentDir, previous.sha256, entryName);
+            }
+            VapBlobStore.addReference(blobFile, entryName);
+            String journalKey = journalKey(blobFile);
+            if (!diskLruCache().recordRead(journalKey)) {
+                diskLruCache().recordWrite(journalKey, blobFile.length());
+            }
+            putMetadata(url, new Metadata(Metadata.NO_EXPIRY, null, null, blobFile.length(), digest));
+        }
+        Logger.INSTANCE.debug("Cache hit for " + url + " by its digest at " + blobFile.getAbsolutePath());
+        return blobFile;
+    }
+
+    /**
+     * Drops the reference of the given entry to a blob and deletes the blob if no other entry points at it.
      */
-    void renameTempFile(String url, FileExtension extension) {
-        String fileName = filenameForUrl(url, extension, true);
-        File file = new File(parentDir(), fileName);
-        String newFileName = file.getAbsolutePath().replace(".temp", "");
-        File newFile = new File(newFileName);
-        boolean renamed = file.renameTo(newFile);
-        Logger.INSTANCE.debug("Copying temp file to real file (" + newFile + ")");
-        if (!renamed) {
-            Logger.INSTANCE.debug("Unable to rename cache file " + file.getAbsolutePath() + " to " + newFile.getAbsolutePath() + ".");
+    private void releaseBlob(File parentDir, String sha256, String entryName) {
+        File blobFile = VapBlobStore.blobFile(parentDir, sha256);
+        if (VapBlobStore.removeReference(blobFile, entryName) == 0) {
+            diskLruCache().remove(journalKey(blobFile));
         }
     }
 
     /**
-     * Returns the cache file for the given url if it exists. Checks for both json and zip.
-     * Returns null if neither exist.
+     * Returns the cache file for the given url if it exists, or null if it doesn't. Entries cached before blobs were
+     * introduced are still served from their own file.
+     * <p>
+     * Once the index is loaded, the journal knows every committed file and the file system isn't asked.
      */
     @Nullable
-    private File getCachedFile(String url) throws FileNotFoundException {
-        File mp4File = new File(parentDir(), filenameForUrl(url, FileExtension.MP4, false));
-        if (mp4File.exists()) {
-            return mp4File;
+    private File getCachedFile(String url, @Nullable Metadata metadata) {
+        boolean indexed = index.isLoaded() && diskLruCache().initialize();
+        File urlFile = cacheFile(url, FileExtension.MP4, false);
+        if (indexed ? diskLruCache().contains(journalKey(urlFile)) : urlFile.exists()) {
+            return urlFile;
+        }
+        if (metadata == null || metadata.sha256 == null) {
+            return null;
+        }
+        File blobFile = VapBlobStore.blobFile(parentDir(), metadata.sha256);
+        if (indexed ? diskLruCache().contains(journalKey(blobFile)) : blobFile.exists()) {
+            return blobFile;
         }
         return null;
     }
 
+    /**
+     * Validators and expiry of a cached animation.
+     */
+    static final class Metadata {
+
+        /**
+         * The expiry of responses that didn't say how long they stay fresh.
+         */
+        static final long NO_EXPIRY = Long.MAX_VALUE;
+
+        /**
+         * Wall clock time after which the entry must be revalidated before it is used.
+         */
+        final long expiresAt;
+        @Nullable
+        final String eTag;
+        @Nullable
+        final String lastModified;
+        /**
+         * The length of the committed file, or -1 if it is unknown.
+         */
+        final long length;
+        /**
+         * The lower case hex encoded SHA-256 digest of the committed file, which names its blob. Entries cached
+         * before blobs were introduced only have one if they have been verified against an expected digest.
+         */
+        @Nullable
+        final String sha256;
+
+        Metadata(long expiresAt, @Nullable String eTag, @Nullable String lastModified, long length,
+                 @Nullable String sha256) {
+            this.expiresAt = expiresAt;
+            this.eTag = eTag;
+            this.lastModified = lastModified;
+            this.length = length;
+            this.sha256 = sha256;
+        }
+
+        boolean isExpired(long now) {
+            return now >= expiresAt;
+        }
+
+    }
+
+    /**
+     * An interrupted download that can be resumed.
+     */
+    static final class PartialDownload {
+
+        /**
+         * The number of bytes already on disk.
+         */
+        final long length;
+
+        /**
+         * The ETag or Last-Modified value to send as {@code If-Range}.
+         */
+        @NonNull
+        final String validator;
+
+        PartialDownload(long length, @NonNull String validator) {
+            this.length = length;
+            this.validator = validator;
+        }
+
+    }
+
+    /**
+     * Guards the blobs and their reference lists, see {@link VapBlobStore}. This is the disk cache itself, which is
+     * locked while it evicts a blob and cleans up after it, so a commit to the same blob never interleaves with that.
+     */
+    private Object blobLock() {
+        return diskLruCache();
+    }
+
+    private VapDiskLruCache diskLruCache() {
+        VapDiskLruCache local = diskLruCache;
+        if (local == null) {
+            synchronized (this) {
+                local = diskLruCache;
+                if (local == null) {
+                    diskLruCache = local = new VapDiskLruCache(cacheProvider.getCacheDir(), initialMaxSize,
+                            this::onFileRemoved);
+                }
+            }
+        }
+        return local;
+    }
+
+    /**
+     * Deletes what belongs to a committed file that left the cache: the metadata of a url file, or the
+     * url entries that pointed at a blob.
+     */
+    private void onFileRemoved(File file) {
+        String name = file.getName();
+        index.onFileRemoved(name);
+        VapCompositionCache.getInstance().invalidate(file);
+        if (VapBlobStore.isBlobFileName(name)) {
+            for (String entryName : VapBlobStore.deleteReferences(file)) {
+                metadataFile(entryFile(parentDir(), entryName)).delete();
+                index.removeMetadata(entryName);
+            }
+        } else {
+            metadataFile(file).delete();
+            index.removeMetadata(name);
+        }
+    }
+
     private File parentDir() {
+        File local = parentDir;
+        if (local != null) {
+            return local;
+        }
         File file = cacheProvider.getCacheDir();
         if (file.isFile()) {
             file.delete();
@@ -139,13 +794,172 @@ public class NetworkCache {
         if (!file.exists()) {
             file.mkdirs();
         }
+        if (file.isDirectory()) {
+            parentDir = file;
+        }
         return file;
     }
 
-    private static String filenameForUrl(String url, FileExtension extension, boolean isTemp) {
-        String prefix = "vap_cache_";
-        String suffix = (isTemp ? extension.tempExtension() : extension.extension);
-        String sanitizedUrl = url.replaceAll("\\W+", "");
+    /**
+     * Creates a shard directory before a file is created in it. The cache directory itself may have been
+     * deleted since it was first checked.
+     */
+    private static void ensureDirectory(File directory) {
+        if (!directory.exists()) {
+            directory.mkdirs();
+        }
+    }
+
+    /**
+     * Moves the animations cached by versions that kept every file in the cache directory into their shard
+     * directories. Their temporary files are deleted.
+     *
+     * @return true if any file was moved.
+     */
+    @WorkerThread
+    private boolean moveUnshardedFiles(File parentDir) {
+        File[] files = parentDir.listFiles();
+        if (files == null) {
+            return false;
+        }
+        boolean moved = false;
+        for (File file : files) {
+            String name = file.getName();
+            if (!file.isFile() || !name.startsWith(FILE_PREFIX)) {
+                continue;
+            }
+            if (!isCacheFileName(name)) {
+                file.delete();
+                continue;
+            }
+            File target = entryFile(parentDir, FILE_PREFIX + keyFor(name) + FileExtension.MP4.extension);
+            ensureDirectory(target.getParentFile());
+            if (file.renameTo(target)) {
+                moved = true;
+            } else {
+                file.delete();
+            }
+        }
+        if (moved) {
+            Logger.INSTANCE.debug("Moved the vap disk cache into shard directories.");
+        }
+        return moved;
+    }
+
+    /**
+     * Returns every file in the shard directories below the cache directory. Every directory is listed once.
+     */
+    static List<File> listShardedFiles(File directory) {
+        List<File> result = new ArrayList<>();
+        File[] firstLevel = directory.listFiles();
+        if (firstLevel == null) {
+            return result;
+        }
+        for (File first : firstLevel) {
+            if (!isShardName(first.getName())) {
+                continue;
+            }
+            File[] secondLevel = first.listFiles();
+            if (secondLevel == null) {
+                continue;
+            }
+            for (File second : secondLevel) {
+                if (!isShardName(second.getName())) {
+                    continue;
+                }
+                File[] files = second.listFiles();
+                if (files != null) {
+                    Collections.addAll(result, files);
+                }
+            }
+        }
+        return result;
+    }
+
+    private static boolean isShardName(String name) {
+        if (name.length() != 1) {
+            return false;
+        }
+        char c = name.charAt(0);
+        return (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f');
+    }
+
+    /**
+     * Returns the shard directory of a file whose key, or digest, starts with the given hex digits.
+     */
+    static File shardDir(File directory, String hex) {
+        return new File(new File(directory, hex.substring(0, 1)), hex.substring(1, 2));
+    }
+
+    /**
+     * Returns the path of a committed file relative to the cache directory, which is how the journal knows it.
+     */
+    static String journalKey(File file) {
+        File shardDir = file.getParentFile();
+        return shardDir.getParentFile().getName() + '/' + shardDir.getName() + '/' + file.getName();
+    }
+
+    /**
+     * Returns the file of the url entry with the given name.
+     */
+    private static File entryFile(File directory, String entryName) {
+        return new File(shardDir(directory, entryName.substring(FILE_PREFIX.length())), entryName);
+    }
+
+    private File cacheFile(String url, FileExtension extension, boolean isTemp) {
+        String cacheFileName = cacheFileNameForUrl(url);
+        if (isTemp) {
+            cacheFileName = cacheFileName.substring(0, cacheFileName.length() - FileExtension.MP4.extension.length())
+                    + extension.tempExtension();
+        }
+        return entryFile(parentDir(), cacheFileName);
+    }
+
+    /**
+     * Returns the name of the committed cache file of the given url, remembering it for the next lookup.
+     */
+    private static String cacheFileNameForUrl(String url) {
+        String cacheFileName = CACHE_FILE_NAMES.get(url);
+        if (cacheFileName == null) {
+            cacheFileName = FILE_PREFIX + keyFor(flatFileName(url)) + FileExtension.MP4.extension;
+            CACHE_FILE_NAMES.put(url, cacheFileName);
+        }
+        return cacheFileName;
+    }
+
+    /**
+     * Makes room for the names of the given number of cached animations. The memo never shrinks.
+     */
+    private static void fitCacheFileNames(int count) {
+        synchronized (CACHE_FILE_NAMES) {
+            if (count > CACHE_FILE_NAMES.maxSize()) {
+                CACHE_FILE_NAMES.resize(count + count / 4);
+            }
+        }
+    }
+
+    /**
+     * Returns the fixed-length key of the file that was named {@code flatFileName} before the cache was sharded.
+     */
+    private static String keyFor(String flatFileName) {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Android version has SHA-256.
+            throw new IllegalStateException(e);
+        }
+        byte[] digest = md.digest(flatFileName.getBytes(StandardCharsets.UTF_8));
+        return toHex(digest, KEY_BYTES);
+    }
+
+    /**
+     * Returns the name a url's cache file had before the cache was sharded.
+     */
+    private static String flatFileName(String url) {
+        String prefix = FILE_PREFIX;
+        String suffix = FileExtension.MP4.extension;
+        String sanitizedUrl = sanitize(url);
         // The max filename on Android is 255 chars.
         int maxUrlLength = 255 - prefix.length() - suffix.length();
         if (sanitizedUrl.length() > maxUrlLength) {
@@ -164,6 +978,61 @@ public class NetworkCache {
         return prefix + sanitizedUrl + suffix;
     }
 
+    /**
+     * Drops every character that isn't an ascii letter, digit or underscore, like {@code replaceAll("\\W+", "")}
+     * but without compiling a pattern.
+     */
+    private static String sanitize(String url) {
+        StringBuilder sb = new StringBuilder(url.length());
+        for (int i = 0; i < url.length(); i++) {
+            char c = url.charAt(i);
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_') {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returns the metadata sidecar of a committed cache file.
+     */
+    static File metadataFile(File cacheFile) {
+        return new File(cacheFile.getAbsolutePath() + METADATA_SUFFIX);
+    }
+
+    static boolean isMetadataFileName(String fileName) {
+        return fileName.startsWith(FILE_PREFIX) && fileName.endsWith(METADATA_SUFFIX);
+    }
+
+    /**
+     * Returns the name of the cache file a metadata sidecar belongs to.
+     */
+    static String cacheFileNameForMetadata(String metadataFileName) {
+        return metadataFileName.substring(0, metadataFileName.length() - METADATA_SUFFIX.length());
+    }
+
+    /**
+     * Returns true if the given name belongs to a committed (non temporary) cache file.
+     */
+    static boolean isCacheFileName(String fileName) {
+        return (fileName.startsWith(FILE_PREFIX) || fileName.startsWith(VapBlobStore.BLOB_PREFIX))
+                && fileName.endsWith(FileExtension.MP4.extension)
+                && !fileName.endsWith(FileExtension.MP4.tempExtension());
+    }
+
+    static String toHex(byte[] bytes) {
+        return toHex(bytes, bytes.length);
+    }
+
+    private static String toHex(byte[] bytes, int count) {
+        char[] chars = new char[count * 2];
+        for (int i = 0; i < count; i++) {
+            chars[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+            chars[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+
     private static String getMD5(String input, int maxLength) {
         MessageDigest md;
         try {
@@ -174,12 +1043,7 @@ public class NetworkCache {
             return input.substring(0, maxLength);
         }
         byte[] messageDigest = md.digest(input.getBytes());
-        StringBuilder sb = new StringBuilder();
-        for (int i = 0; i < messageDigest.length; i++) {
-            byte b = messageDigest[i];
-            sb.append(String.format("%02x", b));
-        }
-        return sb.toString();
+        return toHex(messageDigest);
     }
 
 }
\ No newline at end of file
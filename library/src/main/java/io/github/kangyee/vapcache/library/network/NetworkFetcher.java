@@ -1,7 +1,8 @@
 package io.github.kangyee.vapcache.library.network;
 
 import android.content.Context;
-import android.util.Pair;
+import android.net.Uri;
+import android.os.SystemClock;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -9,83 +10,500 @@ import androidx.annotation.RestrictTo;
 import androidx.annotation.WorkerThread;
 
 import java.io.File;
-import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
 
 import io.github.kangyee.vapcache.library.logger.Logger;
+import io.github.kangyee.vapcache.library.task.VapCancellationToken;
 import io.github.kangyee.vapcache.library.task.VapCompositionFactory;
+import io.github.kangyee.vapcache.library.task.VapDownloadReporter;
 import io.github.kangyee.vapcache.library.task.VapResult;
+import io.github.kangyee.vapcache.library.task.VapRetryLaterException;
+import io.github.kangyee.vapcache.library.task.VapTask;
+import io.github.kangyee.vapcache.library.task.VapTaskPriority;
+import io.github.kangyee.vapcache.library.task.VapTaskScheduler;
 
 @RestrictTo(RestrictTo.Scope.LIBRARY)
 public class NetworkFetcher {
 
+    /**
+     * The default size from which a download is split into segments, once segmented downloads are enabled.
+     */
+    public static final long DEFAULT_MIN_SEGMENTED_CONTENT_LENGTH = 8L * 1024 * 1024;
+
+    /**
+     * The default amount of media data that must be on disk before a download is reported playable.
+     */
+    public static final long DEFAULT_MIN_PLAYABLE_MEDIA_BYTES = 512L * 1024;
+
+    static final int HTTP_PARTIAL = 206;
+    private static final int HTTP_NOT_MODIFIED = 304;
+    private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+
     @Nullable
     private final NetworkCache networkCache;
     @NonNull
-    private final VapNetworkFetcher fetcher;
+    private volatile VapNetworkFetcher fetcher;
+
+    private volatile int segmentCount = 1;
+    private volatile long minSegmentedContentLength = DEFAULT_MIN_SEGMENTED_CONTENT_LENGTH;
+    private volatile long minPlayableMediaBytes = DEFAULT_MIN_PLAYABLE_MEDIA_BYTES;
+    private volatile boolean staleWhileRevalidate;
+    @NonNull
+    private volatile VapRetryPolicy retryPolicy = VapRetryPolicy.DEFAULT;
+
+    /**
+     * Urls whose expired cache entry is being refreshed in the background.
+     */
+    private final Set<String> refreshingUrls = Collections.newSetFromMap(new ConcurrentHashMap<>());
+
+    /**
+     * Urls that failed recently, they fail right away until their backoff has passed.
+     */
+    private final VapFailureCache failureCache = new VapFailureCache();
 
     public NetworkFetcher(@Nullable NetworkCache networkCache, @NonNull VapNetworkFetcher fetcher) {
         this.networkCache = networkCache;
         this.fetcher = fetcher;
     }
 
+    /**
+     * Set the fetcher that makes the requests. Attempts that start afterwards use it, attempts in flight finish with
+     * the previous one. The backoff of failed urls and the background refreshes are kept.
+     */
+    public void setFetcher(@NonNull VapNetworkFetcher fetcher) {
+        this.fetcher = fetcher;
+    }
+
+    /**
+     * Download cached animations of at least {@code minContentLength} bytes over {@code segmentCount} connections
+     * at the same time. This only takes effect if the server supports range requests and sends a strong validator.
+     *
+     * @param segmentCount the number of concurrent ranges, 1 disables segmented downloads.
+     */
+    public void setSegmentedDownload(int segmentCount, long minContentLength) {
+        if (segmentCount <= 0 || minContentLength <= 0) {
+            throw new IllegalArgumentException("segmentCount and minContentLength must be > 0");
+        }
+        this.segmentCount = segmentCount;
+        this.minSegmentedContentLength = minContentLength;
+    }
+
+    /**
+     * Set how much media data must follow the {@code moov} box before a download is reported playable.
+     */
+    public void setMinPlayableMediaBytes(long bytes) {
+        if (bytes <= 0) {
+            throw new IllegalArgumentException("bytes <= 0");
+        }
+        this.minPlayableMediaBytes = bytes;
+    }
+
+    /**
+     * If enabled, an expired cache entry is returned right away and refreshed in the background for the
+     * next request, instead of making the caller wait for the revalidation.
+     */
+    public void setStaleWhileRevalidate(boolean staleWhileRevalidate) {
+        this.staleWhileRevalidate = staleWhileRevalidate;
+    }
+
+    /**
+     * Set how failed downloads are retried, {@link VapRetryPolicy#NONE} disables retries.
+     */
+    public void setRetryPolicy(@NonNull VapRetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+
     @NonNull
     @WorkerThread
     public VapResult<File> fetchSync(Context context, @NonNull String url, @Nullable String cacheKey) {
-        File result = fetchFromCache(context, url, cacheKey);
+        return fetchSync(context, url, cacheKey, null);
+    }
+
+    /**
+     * @param cancellationToken aborts the download and deletes its temporary file once cancelled.
+     */
+    @NonNull
+    @WorkerThread
+    public VapResult<File> fetchSync(Context context, @NonNull String url, @Nullable String cacheKey,
+                                     @Nullable VapCancellationToken cancellationToken) {
+        return fetchSync(context, url, cacheKey, cancellationToken, null);
+    }
+
+    /**
+     * @param downloadReporter receives the growing temporary file as soon as it is playable. Only downloads that
+     *                         are written sequentially into the cache are reported early.
+     */
+    @NonNull
+    @WorkerThread
+    public VapResult<File> fetchSync(Context context, @NonNull String url, @Nullable String cacheKey,
+                                     @Nullable VapCancellationToken cancellationToken,
+                                     @Nullable VapDownloadReporter downloadReporter) {
+        return fetchSync(context, url, cacheKey, cancellationToken, downloadReporter, null);
+    }
+
+    /**
+     * @param expectedSha256 the hex encoded SHA-256 digest the animation must have. A download with a different
+     *                       digest fails and is discarded, a cached animation with a different digest is fetched again.
+     */
+    @NonNull
+    @WorkerThread
+    public VapResult<File> fetchSync(Context context, @NonNull String url, @Nullable String cacheKey,
+                                     @Nullable VapCancellationToken cancellationToken,
+                                     @Nullable VapDownloadReporter downloadReporter,
+                                     @Nullable String expectedSha256) {
+        for (int attempt = 1; ; attempt++) {
+            VapResult<File> result = fetchSync(context, url, cacheKey, cancellationToken, downloadReporter,
+                    expectedSha256, attempt, VapTask.NO_DEADLINE);
+            if (!(result.getException() instanceof VapRetryLaterException)) {
+                return result;
+            }
+            if (!VapCancellationToken.sleep(((VapRetryLaterException) result.getException()).getDelayMs(),
+                    cancellationToken)) {
+                return new VapResult<>(new CancellationException("Fetch of " + url + " was cancelled."));
+            }
+        }
+    }
+
+    /**
+     * Makes a single attempt and doesn't wait for a retry on the calling thread. If the fetch should be retried,
+     * the result fails with a {@link VapRetryLaterException} and this is expected to be called again with the next
+     * attempt once its delay has passed, e.g. by returning the result from the work of a task.
+     *
+     * @param attempt the number of this attempt, starting at 1.
+     * @param deadline the time in {@link SystemClock#elapsedRealtime()} after which nobody waits for the result, or
+     *                 {@link VapTask#NO_DEADLINE}. Connecting and every read of this attempt are bounded by the time
+     *                 that is left.
+     */
+    @NonNull
+    @WorkerThread
+    public VapResult<File> fetchSync(Context context, @NonNull String url, @Nullable String cacheKey,
+                                     @Nullable VapCancellationToken cancellationToken,
+                                     @Nullable VapDownloadReporter downloadReporter,
+                                     @Nullable String expectedSha256, int attempt, long deadline) {
+        File result = fetchFromCache(url, cacheKey);
+        //noinspection ConstantConditions
+        NetworkCache.Metadata metadata = result != null ? networkCache.getMetadata(url) : null;
+        if (result != null && expectedSha256 != null && !hasDigest(url, result, metadata, expectedSha256)) {
+            Logger.INSTANCE.debug("Cached animation for " + url + " doesn't have the expected digest. Fetching again.");
+            result = null;
+        }
         if (result != null) {
-            return new VapResult<>(result);
+            if (metadata == null || !metadata.isExpired(System.currentTimeMillis())) {
+                return new VapResult<>(result);
+            }
+            if (staleWhileRevalidate) {
+                refreshInBackground(context, url, cacheKey, metadata);
+                return new VapResult<>(result);
+            }
+            Logger.INSTANCE.debug("Cached animation for " + url + " expired. Revalidating.");
+            // An expired animation is returned if the revalidation fails, so it isn't retried.
+            VapResult<File> revalidated = fetchFromNetwork(context, url, cacheKey, cancellationToken, downloadReporter,
+                    metadata, expectedSha256, 1, deadline, VapRetryPolicy.NONE);
+            if (revalidated.getValue() == null && !(revalidated.getException() instanceof CancellationException)) {
+                // An outdated animation is better than none.
+                Logger.INSTANCE.debug("Unable to revalidate " + url + ", using the expired animation.");
+                return new VapResult<>(result);
+            }
+            return revalidated;
+        }
+        if (expectedSha256 != null && cacheKey != null && networkCache != null) {
+            File blob = networkCache.adoptBlob(url, expectedSha256);
+            if (blob != null) {
+                return new VapResult<>(blob);
+            }
         }
 
         Logger.INSTANCE.debug("Animation for " + url + " not found in cache. Fetching from network.");
 
-        return fetchFromNetwork(context, url, cacheKey);
+        return fetchFromNetwork(context, url, cacheKey, cancellationToken, downloadReporter, null, expectedSha256,
+                attempt, deadline, retryPolicy);
+    }
+
+    /**
+     * Returns true if the cached file has the expected digest. The digest of an entry is computed once and
+     * recorded in its metadata, later checks only compare the recorded value.
+     */
+    @WorkerThread
+    private boolean hasDigest(@NonNull String url, @NonNull File file, @Nullable NetworkCache.Metadata metadata,
+                              @NonNull String expectedSha256) {
+        if (metadata != null && metadata.sha256 != null) {
+            return metadata.sha256.equalsIgnoreCase(expectedSha256);
+        }
+        String sha256;
+        try {
+            sha256 = sha256(file);
+        } catch (IOException e) {
+            Logger.INSTANCE.debug("Unable to compute the digest of " + file, e);
+            return false;
+        }
+        if (!sha256.equalsIgnoreCase(expectedSha256)) {
+            return false;
+        }
+        //noinspection ConstantConditions
+        networkCache.putMetadata(url, metadata != null
+                ? new NetworkCache.Metadata(metadata.expiresAt, metadata.eTag, metadata.lastModified, file.length(), sha256)
+                : new NetworkCache.Metadata(NetworkCache.Metadata.NO_EXPIRY, null, null, file.length(), sha256));
+        return true;
+    }
+
+    /**
+     * Revalidates an expired cache entry with low priority. Concurrent refreshes of the same url are coalesced
+     * and failures are only logged, the caller has already been served the expired file.
+     */
+    private void refreshInBackground(Context context, @NonNull String url, @NonNull String cacheKey,
+                                     @NonNull NetworkCache.Metadata metadata) {
+        if (!refreshingUrls.add(url)) {
+            return;
+        }
+        Logger.INSTANCE.debug("Cached animation for " + url + " expired. Refreshing in the background.");
+        final Context appContext = context.getApplicationContext();
+        VapTaskScheduler.getInstance().submit(() -> {
+            try {
+                VapResult<File> refreshed = fetchFromNetwork(appContext, url, cacheKey, null, null, metadata,
+                        metadata.sha256, 1, VapTask.NO_DEADLINE, VapRetryPolicy.NONE);
+                if (refreshed.getException() != null) {
+                    Logger.INSTANCE.debug("Background refresh of " + url + " failed.", refreshed.getException());
+                }
+            } catch (Throwable e) {
+                Logger.INSTANCE.debug("Background refresh of " + url + " failed.", e);
+            } finally {
+                refreshingUrls.remove(url);
+            }
+        }, VapTaskPriority.LOW, Uri.parse(url).getHost());
     }
 
     @Nullable
     @WorkerThread
-    private File fetchFromCache(Context context, @NonNull String url, @Nullable String cacheKey) {
+    private File fetchFromCache(@NonNull String url, @Nullable String cacheKey) {
         if (cacheKey == null || networkCache == null) {
             return null;
         }
-        Pair<FileExtension, InputStream> cacheResult = networkCache.fetch(url);
-        if (cacheResult == null) {
-            return null;
+        return networkCache.fetch(url);
+    }
+
+    /**
+     * @param revalidating the metadata of an expired cache entry. If set, the request is conditional and a
+     *                     {@code 304 Not Modified} response refreshes the entry without transferring it again.
+     * @param expectedSha256 the digest the downloaded animation must have, or null if only its length is verified.
+     * @param attempt the number of this attempt, starting at 1.
+     * @param deadline see {@link #fetchSync(Context, String, String, VapCancellationToken, VapDownloadReporter, String, int, long)}.
+     * @return the result, or a {@link VapRetryLaterException} if the policy retries the failed attempt.
+     */
+    @NonNull
+    @WorkerThread
+    private VapResult<File> fetchFromNetwork(Context context, @NonNull String url, @Nullable String cacheKey,
+                                             @Nullable VapCancellationToken cancellationToken,
+                                             @Nullable VapDownloadReporter downloadReporter,
+                                             @Nullable NetworkCache.Metadata revalidating,
+                                             @Nullable String expectedSha256, int attempt, long deadline,
+                                             @NonNull VapRetryPolicy policy) {
+        try {
+            failureCache.throwIfBackingOff(url);
+        } catch (VapFailureCache.BackoffException e) {
+            Logger.INSTANCE.debug(e.getMessage());
+            return new VapResult<>(e);
         }
 
-        FileExtension extension = cacheResult.first;
-        InputStream inputStream = cacheResult.second;
-        VapResult<File> result = VapCompositionFactory.fromInputStreamSync(
-                context, inputStream, cacheKey
-        );
-        if (result.getValue() != null) {
-            return result.getValue();
+        VapResult<File> result = attemptFetch(context, url, cacheKey, cancellationToken, downloadReporter,
+                revalidating, expectedSha256, fetcherWithin(deadline));
+        long delay = retryDelay(policy, attempt, result);
+        if (delay < 0) {
+            onFetchFailed(url, result);
+            return result;
         }
-        return null;
+        Logger.INSTANCE.debug("Attempt " + attempt + " to fetch " + url + " failed. Retrying in " + delay + " ms.");
+        return new VapResult<>(new VapRetryLaterException(delay, result.getException()));
     }
 
+    /**
+     * Returns how long to wait before the fetch is attempted again, or -1 if it shouldn't be. A server that asks for
+     * a longer delay with {@code Retry-After} than the policy allows isn't retried at all.
+     */
+    private static long retryDelay(@NonNull VapRetryPolicy policy, int attempt, @NonNull VapResult<File> result) {
+        Throwable exception = result.getException();
+        if (result.getValue() != null || attempt >= policy.getMaxAttempts() || !(exception instanceof Exception)
+                || exception instanceof CancellationException || exception instanceof DigestMismatchException) {
+            return -1;
+        }
+        int responseCode = -1;
+        long retryAfter = 0;
+        if (exception instanceof HttpException) {
+            responseCode = ((HttpException) exception).responseCode;
+            retryAfter = VapFailureCache.retryAfterMillis(((HttpException) exception).retryAfter);
+        }
+        if (!policy.isRetryable((Exception) exception, responseCode)) {
+            return -1;
+        }
+        long delay = Math.max(policy.delayMs(attempt), retryAfter);
+        return delay <= policy.getMaxDelayMs() ? delay : -1;
+    }
+
+    /**
+     * Records a fetch that failed for good with an HTTP error, so that later fetches of the url back off.
+     * Failed attempts that were retried aren't recorded.
+     */
+    private void onFetchFailed(@NonNull String url, @NonNull VapResult<File> result) {
+        if (result.getException() instanceof HttpException) {
+            HttpException e = (HttpException) result.getException();
+            failureCache.onFailure(url, e.responseCode, e.retryAfter);
+        }
+    }
+
+    /**
+     * Returns the fetcher with its timeouts bounded by the time that is left until the deadline. Once the deadline has
+     * passed, the attempt only completes for the cache and keeps the usual timeouts.
+     */
+    @NonNull
+    private VapNetworkFetcher fetcherWithin(long deadline) {
+        VapNetworkFetcher fetcher = this.fetcher;
+        if (deadline == VapTask.NO_DEADLINE) {
+            return fetcher;
+        }
+        long remaining = deadline - SystemClock.elapsedRealtime();
+        return remaining > 0 ? fetcher.withTimeout(remaining) : fetcher;
+    }
+
+    /**
+     * Makes a single request, see {@link #fetchFromNetwork}.
+     *
+     * @param fetcher the fetcher to make the request with.
+     */
     @NonNull
     @WorkerThread
-    private VapResult<File> fetchFromNetwork(Context context, @NonNull String url, @Nullable String cacheKey) {
+    private VapResult<File> attemptFetch(Context context, @NonNull String url, @Nullable String cacheKey,
+                                         @Nullable VapCancellationToken cancellationToken,
+                                         @Nullable VapDownloadReporter downloadReporter,
+                                         @Nullable NetworkCache.Metadata revalidating,
+                                         @Nullable String expectedSha256, @NonNull VapNetworkFetcher fetcher) {
         Logger.INSTANCE.debug("Fetching " + url);
 
         VapFetchResult fetchResult = null;
+        Runnable abort = null;
         try {
-            fetchResult = fetcher.fetchSync(url);
+            if (cancellationToken != null) {
+                cancellationToken.throwIfCancelled();
+            }
+            if (revalidating != null && expectedSha256 != null && !expectedSha256.equalsIgnoreCase(revalidating.sha256)) {
+                // A 304 would confirm a version that is known to be wrong.
+                revalidating = null;
+            }
+            NetworkCache.PartialDownload partial = revalidating == null && cacheKey != null && networkCache != null
+                    ? networkCache.partialDownload(url, FileExtension.MP4) : null;
+            boolean segmentable = revalidating == null && partial == null && segmentCount > 1
+                    && cacheKey != null && networkCache != null;
+            if (revalidating != null) {
+                Map<String, String> headers = new HashMap<>();
+                if (revalidating.eTag != null) {
+                    headers.put("If-None-Match", revalidating.eTag);
+                }
+                if (revalidating.lastModified != null) {
+                    headers.put("If-Modified-Since", revalidating.lastModified);
+                }
+                fetchResult = fetcher.fetchSync(url, headers);
+            } else if (segmentable) {
+                // Asking for the whole resource as a range reveals whether the server supports ranges and how
+                // large the resource is, without an extra round trip. The body is used either way.
+                fetchResult = fetcher.fetchSync(url, Collections.singletonMap("Range", "bytes=0-"));
+            } else if (partial == null) {
+                fetchResult = fetcher.fetchSync(url);
+            } else {
+                Logger.INSTANCE.debug("Resuming " + url + " from byte " + partial.length);
+                Map<String, String> headers = new HashMap<>();
+                headers.put("Range", "bytes=" + partial.length + "-");
+                headers.put("If-Range", partial.validator);
+                fetchResult = fetcher.fetchSync(url, headers);
+                if (!isResumed(fetchResult, partial)) {
+                    if (fetchResult.responseCode() == HTTP_PARTIAL
+                            || fetchResult.responseCode() == HTTP_RANGE_NOT_SATISFIABLE) {
+                        // The partial file doesn't line up with the resource anymore, start over.
+                        networkCache.discardPartialDownload(url, FileExtension.MP4);
+                        VapCompositionFactory.closeQuietly(fetchResult);
+                        fetchResult = fetcher.fetchSync(url);
+                    }
+                    // Otherwise the server ignored the range and sent the whole resource.
+                    partial = null;
+                }
+            }
+            if (cancellationToken != null) {
+                // Closing the connection unblocks a read that is waiting for the network.
+                final VapFetchResult connection = fetchResult;
+                abort = () -> VapCompositionFactory.closeQuietly(connection);
+                cancellationToken.addOnCancelListener(abort);
+            }
+            if (revalidating != null && fetchResult.responseCode() == HTTP_NOT_MODIFIED) {
+                Logger.INSTANCE.debug(url + " has not been modified.");
+                //noinspection ConstantConditions
+                networkCache.putMetadata(url, metadata(fetchResult, revalidating, revalidating.length, revalidating.sha256));
+                failureCache.onSuccess(url);
+                File file = networkCache.fetch(url);
+                if (file == null) {
+                    return new VapResult<>(new FileNotFoundException("The cached animation for " + url + " is gone."));
+                }
+                return new VapResult<>(file);
+            }
             if (fetchResult.isSuccessful()) {
-                InputStream inputStream = fetchResult.bodyByteStream();
+                failureCache.onSuccess(url);
+                String validator = partial != null ? partial.validator : validator(fetchResult);
+                long contentLength = segmentable && validator != null && contentRangeStart(fetchResult) == 0
+                        ? contentRangeTotal(fetchResult) : -1;
+                if (contentLength >= minSegmentedContentLength) {
+                    return fetchSegmented(url, fetchResult, validator, contentLength, cancellationToken,
+                            downloadReporter, expectedSha256, fetcher);
+                }
+                long expectedLength = fetchResult.header("Content-Encoding") == null ? contentLength(fetchResult, partial) : -1;
+                if (downloadReporter != null) {
+                    downloadReporter.setContentLength(expectedLength);
+                }
+                InputStream inputStream = verifyingInputStream(url, fetchResult.bodyByteStream(), partial, expectedLength,
+                        expectedSha256);
                 String contentType = fetchResult.contentType();
-                VapResult<File> result = fromInputStream(context, url, inputStream, contentType, cacheKey);
+                if (downloadReporter != null && cacheKey != null && networkCache != null) {
+                    inputStream = playableInputStream(url, inputStream, partial, downloadReporter);
+                }
+                VapResult<File> result = fromInputStream(context, url, inputStream, contentType, cacheKey, cancellationToken,
+                        partial != null, validator, downloadReporter, metadata(fetchResult, null, -1, expectedSha256));
+                if (cancellationToken != null) {
+                    cancellationToken.throwIfCancelled();
+                }
                 Logger.INSTANCE.debug("Completed fetch from network. Success: " + (result.getValue() != null));
                 return result;
             } else {
-                return new VapResult<>(new IllegalArgumentException(fetchResult.error()));
+                return new VapResult<>(new HttpException(fetchResult.responseCode(), fetchResult.header("Retry-After"),
+                        fetchResult.error()));
             }
         } catch (Exception e) {
+            if (cancellationToken != null && cancellationToken.isCancelled()) {
+                Logger.INSTANCE.debug("Fetch of " + url + " was cancelled.");
+                return new VapResult<>(new CancellationException("Fetch of " + url + " was cancelled."));
+            }
+            if (e instanceof DigestMismatchException && cacheKey != null && networkCache != null) {
+                // Resuming would only reproduce the same wrong bytes.
+                networkCache.discardPartialDownload(url, FileExtension.MP4);
+            }
             Logger.INSTANCE.warning("fetch failed", e);
             return new VapResult<>(e);
         } finally {
+            if (abort != null) {
+                cancellationToken.removeOnCancelListener(abort);
+            }
             if (fetchResult != null) {
                 try {
                     fetchResult.close();
@@ -99,28 +517,482 @@ public class NetworkFetcher {
 
     @NonNull
     private VapResult<File> fromInputStream(Context context, @NonNull String url, @NonNull InputStream inputStream, @Nullable String contentType,
-                                            @Nullable String cacheKey) throws IOException {
-        FileExtension extension;
-        VapResult<File> result;
+                                            @Nullable String cacheKey, @Nullable VapCancellationToken cancellationToken,
+                                            boolean append, @Nullable String validator,
+                                            @Nullable VapDownloadReporter downloadReporter,
+                                            @NonNull NetworkCache.Metadata metadata)
+            throws IOException {
         Logger.INSTANCE.debug("Received data response.");
-        extension = FileExtension.MP4;
-        result = fromFileStream(context, url, inputStream, cacheKey);
+        if (cacheKey == null || networkCache == null) {
+            return VapCompositionFactory.fromInputStreamSync(context, inputStream, null, true, downloadReporter);
+        }
+        // The downloaded bytes are written once into the cache directory and the permanent
+        // cache file is handed back as is, there is no need to copy it anywhere else.
+        networkCache.writeTempCacheFile(url, inputStream, FileExtension.MP4, cancellationToken, append, validator,
+                downloadReporter);
+        return new VapResult<>(networkCache.commitTempFile(url, FileExtension.MP4, metadata));
+    }
 
-        if (cacheKey != null && result.getValue() != null && networkCache != null) {
-            networkCache.renameTempFile(url, extension);
+    /**
+     * Wraps the response body so that its length and, if expected, its digest are verified once it has been read.
+     * The digest of a resumed download covers the bytes of the partial file as well.
+     */
+    private InputStream verifyingInputStream(@NonNull String url, @NonNull InputStream inputStream,
+                                             @Nullable NetworkCache.PartialDownload partial, long expectedLength,
+                                             @Nullable String expectedSha256) throws IOException {
+        MessageDigest digest = null;
+        if (expectedSha256 != null) {
+            digest = newSha256Digest();
+            if (partial != null) {
+                //noinspection ConstantConditions
+                update(digest, networkCache.getTempFile(url, FileExtension.MP4), partial.length);
+            }
+        }
+        if (expectedLength < 0 && digest == null) {
+            return inputStream;
         }
+        return new VerifyingInputStream(inputStream, url, partial != null ? partial.length : 0, expectedLength,
+                digest, expectedSha256);
+    }
 
-        return result;
+    /**
+     * Wraps the response body so that the temporary file is reported as soon as it becomes playable.
+     */
+    private InputStream playableInputStream(@NonNull String url, @NonNull InputStream inputStream,
+                                            @Nullable NetworkCache.PartialDownload partial,
+                                            @NonNull VapDownloadReporter downloadReporter) {
+        //noinspection ConstantConditions
+        File tempFile = networkCache.getTempFile(url, FileExtension.MP4);
+        Mp4PlayableDetector detector;
+        if (partial == null) {
+            detector = new Mp4PlayableDetector(minPlayableMediaBytes);
+        } else {
+            try {
+                detector = Mp4PlayableDetector.resume(tempFile, partial.length, minPlayableMediaBytes);
+            } catch (IOException e) {
+                Logger.INSTANCE.debug("Unable to inspect the partial download of " + url, e);
+                return inputStream;
+            }
+        }
+        return new PlayableInputStream(inputStream, detector, tempFile, downloadReporter);
     }
 
     @NonNull
-    private VapResult<File> fromFileStream(Context context, @NonNull String url, @NonNull InputStream inputStream, @Nullable String cacheKey)
-            throws IOException {
-        if (cacheKey == null || networkCache == null) {
-            return VapCompositionFactory.fromInputStreamSync(context, inputStream, null);
+    private VapResult<File> fetchSegmented(@NonNull String url, @NonNull VapFetchResult fetchResult,
+                                           @NonNull String validator, long contentLength,
+                                           @Nullable VapCancellationToken cancellationToken,
+                                           @Nullable VapDownloadReporter downloadReporter,
+                                           @Nullable String expectedSha256,
+                                           @NonNull VapNetworkFetcher fetcher) throws IOException {
+        int wanted = (int) Math.min(segmentCount, contentLength / (64 * 1024) + 1);
+        // The task already counts as one connection to the host, the other segments are charged against the
+        // host's limit as well, so that segmented downloads don't open more connections than tasks could.
+        String host = Uri.parse(url).getHost();
+        VapTaskScheduler scheduler = VapTaskScheduler.getInstance();
+        int extraConnections = scheduler.acquireHostConnections(host, wanted - 1);
+        int segments = 1 + extraConnections;
+        Logger.INSTANCE.debug("Fetching " + contentLength + " bytes of " + url + " in " + segments + " segments.");
+        FileChannel channel = null;
+        boolean completed = false;
+        try {
+            channel = networkCache.openTempFileChannel(url, FileExtension.MP4, contentLength);
+            if (downloadReporter != null) {
+                downloadReporter.setContentLength(contentLength);
+            }
+            new SegmentedDownload(fetcher, url, validator, contentLength, segments, downloadReporter)
+                    .run(fetchResult, channel, cancellationToken);
+            // Make sure the data survives a crash before the file can be renamed into place.
+            channel.force(true);
+            if (expectedSha256 != null) {
+                // The ranges arrived out of order, the digest can only be computed from the file.
+                MessageDigest digest = newSha256Digest();
+                update(digest, networkCache.getTempFile(url, FileExtension.MP4), contentLength);
+                verifyDigest(url, digest, expectedSha256);
+            }
+            completed = true;
+        } finally {
+            scheduler.releaseHostConnections(host, extraConnections);
+            try {
+                if (channel != null) {
+                    channel.close();
+                }
+            } finally {
+                if (!completed) {
+                    networkCache.discardPartialDownload(url, FileExtension.MP4);
+                }
+            }
+        }
+        if (cancellationToken != null) {
+            cancellationToken.throwIfCancelled();
+        }
+        return new VapResult<>(networkCache.commitTempFile(url, FileExtension.MP4,
+                metadata(fetchResult, null, -1, expectedSha256)));
+    }
+
+    /**
+     * Returns true if the response continues the partial download exactly where it stopped.
+     */
+    private static boolean isResumed(VapFetchResult fetchResult, NetworkCache.PartialDownload partial) {
+        return fetchResult.responseCode() == HTTP_PARTIAL && contentRangeStart(fetchResult) == partial.length;
+    }
+
+    /**
+     * Returns the validators and expiry described by the response headers.
+     *
+     * @param previous the metadata of the entry being revalidated. Its validators are kept unless the response
+     *                 replaces them, and a response without freshness information must be revalidated every time.
+     * @param length   the length of the committed file, or -1 if it hasn't been committed yet.
+     * @param sha256   the digest the committed file has been verified against, if any.
+     */
+    private static NetworkCache.Metadata metadata(VapFetchResult fetchResult, @Nullable NetworkCache.Metadata previous,
+                                                  long length, @Nullable String sha256) {
+        long now = System.currentTimeMillis();
+        String eTag = fetchResult.header("ETag");
+        String lastModified = fetchResult.header("Last-Modified");
+        if (previous != null) {
+            if (eTag == null) {
+                eTag = previous.eTag;
+            }
+            if (lastModified == null) {
+                lastModified = previous.lastModified;
+            }
+        }
+        long expiresAt = expiresAt(fetchResult, now);
+        if (expiresAt < 0) {
+            expiresAt = previous != null ? now : NetworkCache.Metadata.NO_EXPIRY;
+        }
+        return new NetworkCache.Metadata(expiresAt, eTag, lastModified, length,
+                sha256 != null ? sha256.toLowerCase(Locale.US) : null);
+    }
+
+    /**
+     * Returns when the response stops being fresh according to {@code Cache-Control} or {@code Expires},
+     * or -1 if it doesn't say.
+     */
+    static long expiresAt(VapFetchResult fetchResult, long now) {
+        String cacheControl = fetchResult.header("Cache-Control");
+        if (cacheControl != null) {
+            long maxAgeSeconds = -1;
+            for (String directive : cacheControl.split(",")) {
+                String value = directive.trim().toLowerCase(Locale.US);
+                if (value.equals("no-cache") || value.equals("no-store")) {
+                    return now;
+                }
+                if (value.startsWith("max-age=")) {
+                    try {
+                        maxAgeSeconds = Long.parseLong(value.substring("max-age=".length()).replace("\"", "").trim());
+                    } catch (NumberFormatException e) {
+                        // Ignore the directive.
+                    }
+                }
+            }
+            if (maxAgeSeconds >= 0) {
+                long ageSeconds = 0;
+                String age = fetchResult.header("Age");
+                if (age != null) {
+                    try {
+                        ageSeconds = Math.max(0, Long.parseLong(age.trim()));
+                    } catch (NumberFormatException e) {
+                        // Ignore the header.
+                    }
+                }
+                return now + Math.max(0, maxAgeSeconds - ageSeconds) * 1000;
+            }
+        }
+        String expires = fetchResult.header("Expires");
+        if (expires != null) {
+            long expiresTime = parseHttpDate(expires);
+            if (expiresTime < 0) {
+                // An invalid date means the response has already expired.
+                return now;
+            }
+            // Relative to the server clock, the device clock may be off.
+            long date = parseHttpDate(fetchResult.header("Date"));
+            return date < 0 ? expiresTime : now + Math.max(0, expiresTime - date);
+        }
+        return -1;
+    }
+
+    private static long parseHttpDate(@Nullable String value) {
+        if (value == null) {
+            return -1;
+        }
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        try {
+            Date date = format.parse(value.trim());
+            return date == null ? -1 : date.getTime();
+        } catch (ParseException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Returns the total size of the resource, including the bytes of a resumed partial download, or -1 if it is unknown.
+     */
+    private static long contentLength(VapFetchResult fetchResult, @Nullable NetworkCache.PartialDownload partial) {
+        long total = contentRangeTotal(fetchResult);
+        if (total > 0) {
+            return total;
+        }
+        String contentLength = fetchResult.header("Content-Length");
+        if (contentLength == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(contentLength.trim()) + (partial != null ? partial.length : 0);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Returns the first byte position of a {@code Content-Range} header such as
+     * {@code "bytes 1048576-5242879/5242880"}, or -1 if it is missing or malformed.
+     */
+    static long contentRangeStart(VapFetchResult fetchResult) {
+        String contentRange = fetchResult.header("Content-Range");
+        if (contentRange == null || !contentRange.startsWith("bytes ")) {
+            return -1;
+        }
+        int dash = contentRange.indexOf('-');
+        if (dash < 0) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(contentRange.substring("bytes ".length(), dash).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Returns the complete length of the resource from a {@code Content-Range} header, or -1 if it is unknown.
+     */
+    static long contentRangeTotal(VapFetchResult fetchResult) {
+        String contentRange = fetchResult.header("Content-Range");
+        if (contentRange == null) {
+            return -1;
+        }
+        int slash = contentRange.lastIndexOf('/');
+        if (slash < 0) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(contentRange.substring(slash + 1).trim());
+        } catch (NumberFormatException e) {
+            // "*" if the length is unknown.
+            return -1;
+        }
+    }
+
+    /**
+     * Returns the value that identifies this version of the resource in a later {@code If-Range} header.
+     * Weak ETags can't be used for range requests, Last-Modified is used instead in that case.
+     */
+    @Nullable
+    private static String validator(VapFetchResult fetchResult) {
+        String eTag = fetchResult.header("ETag");
+        if (eTag != null && !eTag.startsWith("W/")) {
+            return eTag;
+        }
+        return fetchResult.header("Last-Modified");
+    }
+
+    private static MessageDigest newSha256Digest() throws IOException {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Feeds the first {@code length} bytes of the file into the digest.
+     */
+    private static void update(MessageDigest digest, File file, long length) throws IOException {
+        byte[] buffer = new byte[8 * 1024];
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            long remaining = length;
+            while (remaining > 0) {
+                int read = randomAccessFile.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read == -1) {
+                    throw new IOException(file + " is shorter than " + length + " bytes.");
+                }
+                digest.update(buffer, 0, read);
+                remaining -= read;
+            }
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    static String sha256(File file) throws IOException {
+        MessageDigest digest = newSha256Digest();
+        update(digest, file, file.length());
+        return NetworkCache.toHex(digest.digest());
+    }
+
+    private static void verifyDigest(String url, MessageDigest digest, String expectedSha256)
+            throws DigestMismatchException {
+        String sha256 = NetworkCache.toHex(digest.digest());
+        if (!sha256.equalsIgnoreCase(expectedSha256)) {
+            throw new DigestMismatchException("The SHA-256 digest of " + url + " is " + sha256
+                    + ", expected " + expectedSha256 + ".");
+        }
+    }
+
+    /**
+     * The server answered with an error status.
+     */
+    private static final class HttpException extends IllegalArgumentException {
+
+        final int responseCode;
+        @Nullable
+        final String retryAfter;
+
+        HttpException(int responseCode, @Nullable String retryAfter, @Nullable String message) {
+            super(message);
+            this.responseCode = responseCode;
+            this.retryAfter = retryAfter;
+        }
+
+    }
+
+    /**
+     * Thrown when a download has the expected length but not the expected content.
+     */
+    private static final class DigestMismatchException extends IOException {
+
+        DigestMismatchException(String message) {
+            super(message);
+        }
+
+    }
+
+    /**
+     * Counts the bytes of the response body and feeds them into a digest. Once the body has been read completely,
+     * a short body fails with an {@link IOException}, like a dropped connection, so that the partial file can still
+     * be resumed. A wrong digest fails with a {@link DigestMismatchException}.
+     */
+    private static final class VerifyingInputStream extends FilterInputStream {
+
+        @NonNull
+        private final String url;
+        private final long expectedLength;
+        @Nullable
+        private final MessageDigest digest;
+        @Nullable
+        private final String expectedSha256;
+        private long length;
+        private boolean verified;
+
+        VerifyingInputStream(@NonNull InputStream in, @NonNull String url, long startLength, long expectedLength,
+                             @Nullable MessageDigest digest, @Nullable String expectedSha256) {
+            super(in);
+            this.url = url;
+            this.length = startLength;
+            this.expectedLength = expectedLength;
+            this.digest = digest;
+            this.expectedSha256 = expectedSha256;
         }
-        File file = networkCache.writeTempCacheFile(url, inputStream, FileExtension.MP4);
-        return VapCompositionFactory.fromInputStreamSync(context, new FileInputStream(file.getAbsolutePath()), url);
+
+        @Override
+        public int read() throws IOException {
+            byte[] buffer = new byte[1];
+            return read(buffer, 0, 1) == -1 ? -1 : buffer[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0) {
+                length += read;
+                if (digest != null) {
+                    digest.update(b, off, read);
+                }
+            } else if (read == -1 && !verified) {
+                verified = true;
+                if (expectedLength >= 0 && length != expectedLength) {
+                    throw new IOException("Received " + length + " bytes of " + url + ", expected " + expectedLength + ".");
+                }
+                if (digest != null) {
+                    //noinspection ConstantConditions
+                    verifyDigest(url, digest, expectedSha256);
+                }
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // Skipped bytes would be missing from the digest.
+            byte[] buffer = new byte[(int) Math.min(8 * 1024, Math.max(n, 0))];
+            long skipped = 0;
+            while (skipped < n) {
+                int read = read(buffer, 0, (int) Math.min(buffer.length, n - skipped));
+                if (read == -1) {
+                    break;
+                }
+                skipped += read;
+            }
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+    }
+
+    /**
+     * Feeds the response body through a {@link Mp4PlayableDetector} on its way into the temporary file.
+     * <p>
+     * The bytes returned by a read are only written after the read returns, so a file that became playable is
+     * reported on the next read that returns data, once everything the detector has seen is on disk.
+     */
+    private static final class PlayableInputStream extends FilterInputStream {
+
+        @NonNull
+        private final File tempFile;
+        @NonNull
+        private final VapDownloadReporter downloadReporter;
+        @Nullable
+        private Mp4PlayableDetector detector;
+        private boolean playable;
+
+        PlayableInputStream(@NonNull InputStream in, @NonNull Mp4PlayableDetector detector, @NonNull File tempFile,
+                            @NonNull VapDownloadReporter downloadReporter) {
+            super(in);
+            this.detector = detector;
+            this.tempFile = tempFile;
+            this.downloadReporter = downloadReporter;
+            playable = detector.isPlayable();
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] buffer = new byte[1];
+            return read(buffer, 0, 1) == -1 ? -1 : buffer[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0 && detector != null) {
+                if (playable) {
+                    // A download that ends here is reported with its final file instead.
+                    detector = null;
+                    downloadReporter.reportPlayable(tempFile);
+                } else {
+                    playable = detector.update(b, off, read);
+                }
+            }
+            return read;
+        }
+
     }
 
 }
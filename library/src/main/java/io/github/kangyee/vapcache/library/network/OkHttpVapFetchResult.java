@@ -0,0 +1,107 @@
+package io.github.kangyee.vapcache.library.network;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import io.github.kangyee.vapcache.library.logger.Logger;
+import okhttp3.Call;
+import okhttp3.MediaType;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+public class OkHttpVapFetchResult implements VapFetchResult {
+
+    /**
+     * Only the start of an error body is included in {@link #error()}.
+     */
+    private static final long MAX_ERROR_BODY_BYTES = 8 * 1024;
+
+    @NonNull
+    private final Call call;
+    @NonNull
+    private final Response response;
+    /**
+     * Set while the body stream has been handed out and hasn't been read to its end.
+     */
+    private volatile boolean reading;
+
+    public OkHttpVapFetchResult(@NonNull Call call, @NonNull Response response) {
+        this.call = call;
+        this.response = response;
+    }
+
+    @Override public boolean isSuccessful() {
+        return response.isSuccessful();
+    }
+
+    @Override public int responseCode() {
+        return response.code();
+    }
+
+    @Nullable @Override public String header(@NonNull String name) {
+        return response.header(name);
+    }
+
+    @NonNull @Override public InputStream bodyByteStream() throws IOException {
+        ResponseBody body = response.body();
+        if (body == null) {
+            throw new IOException("The response of " + call.request().url() + " has no body.");
+        }
+        reading = true;
+        // Reads straight from the connection's Okio source.
+        return new FilterInputStream(body.source().inputStream()) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b == -1) {
+                    reading = false;
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int read = super.read(b, off, len);
+                if (read == -1) {
+                    reading = false;
+                }
+                return read;
+            }
+        };
+    }
+
+    @Nullable
+    @Override public String contentType() {
+        ResponseBody body = response.body();
+        MediaType contentType = body != null ? body.contentType() : null;
+        return contentType != null ? contentType.toString() : null;
+    }
+
+    @Nullable @Override public String error() {
+        if (isSuccessful()) {
+            return null;
+        }
+        String error = "Unable to fetch " + call.request().url() + ". Failed with " + response.code() + "\n";
+        try {
+            return error + response.peekBody(MAX_ERROR_BODY_BYTES).string();
+        } catch (IOException e) {
+            Logger.INSTANCE.warning("get error failed ", e);
+            return error;
+        }
+    }
+
+    /**
+     * Cancels the call as well while its body is still being read, which unblocks a read that is waiting for the
+     * network on another thread. Otherwise the response is only closed, so that its connection goes back to the pool.
+     */
+    @Override public void close() {
+        if (reading) {
+            call.cancel();
+        }
+        response.close();
+    }
+}
@@ -0,0 +1,70 @@
+package io.github.kangyee.vapcache.library.network;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Call;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+
+/**
+ * Fetches animations with the app's {@link OkHttpClient}, so that downloads share its connection pool, dispatcher,
+ * interceptors and timeouts. Requests to the same host reuse pooled connections and are multiplexed over HTTP/2
+ * where the server supports it, instead of opening a new connection and TLS session for every animation.
+ * <p>
+ * OkHttp is not a dependency of this library, apps that use this fetcher have to add it themselves.
+ */
+public class OkHttpVapNetworkFetcher implements VapNetworkFetcher {
+
+    @NonNull
+    private final OkHttpClient client;
+
+    public OkHttpVapNetworkFetcher(@NonNull OkHttpClient client) {
+        this.client = client;
+    }
+
+    @Override
+    @NonNull
+    public VapFetchResult fetchSync(@NonNull String url) throws IOException {
+        return fetchSync(url, Collections.emptyMap());
+    }
+
+    @Override
+    @NonNull
+    public VapFetchResult fetchSync(@NonNull String url, @NonNull Map<String, String> headers) throws IOException {
+        Request.Builder request = new Request.Builder().url(url).get();
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            request.header(header.getKey(), header.getValue());
+        }
+        Call call = client.newCall(request.build());
+        return new OkHttpVapFetchResult(call, call.execute());
+    }
+
+    /**
+     * The returned fetcher still shares the connection pool and dispatcher of the client.
+     */
+    @Override
+    @NonNull
+    public VapNetworkFetcher withTimeout(long timeoutMs) {
+        long connectTimeoutMs = clamp(client.connectTimeoutMillis(), timeoutMs);
+        long readTimeoutMs = clamp(client.readTimeoutMillis(), timeoutMs);
+        if (connectTimeoutMs == client.connectTimeoutMillis() && readTimeoutMs == client.readTimeoutMillis()) {
+            return this;
+        }
+        return new OkHttpVapNetworkFetcher(client.newBuilder()
+                .connectTimeout(connectTimeoutMs, TimeUnit.MILLISECONDS)
+                .readTimeout(readTimeoutMs, TimeUnit.MILLISECONDS)
+                .build());
+    }
+
+    /**
+     * OkHttp uses 0 for no timeout.
+     */
+    private static long clamp(long clientTimeoutMs, long timeoutMs) {
+        return clientTimeoutMs == 0 ? timeoutMs : Math.min(clientTimeoutMs, timeoutMs);
+    }
+}
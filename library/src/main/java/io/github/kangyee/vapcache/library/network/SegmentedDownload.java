@@ -0,0 +1,262 @@
+package io.github.kangyee.vapcache.library.network;
+
+import android.os.Process;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.github.kangyee.vapcache.library.task.VapCancellationToken;
+import io.github.kangyee.vapcache.library.task.VapCompositionFactory;
+import io.github.kangyee.vapcache.library.task.VapDownloadReporter;
+
+/**
+ * Downloads one resource over several connections at the same time. Every connection fetches its own
+ * byte range and writes it into a file that already has the final length, so the ranges can land in any order.
+ * <p>
+ * The first range is read from the response that was used to discover the content length, the remaining
+ * ranges are requested with {@code If-Range} so that all of them belong to the same version of the resource.
+ */
+final class SegmentedDownload {
+
+    /**
+     * The segments are not scheduled by {@link io.github.kangyee.vapcache.library.task.VapTaskScheduler},
+     * the task that owns the download is already counted there and waits for them. Their connections are
+     * charged against the host's limit by the caller, which bounds the number of threads in use.
+     */
+    private static final ExecutorService EXECUTOR = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60L, TimeUnit.SECONDS,
+            new SynchronousQueue<>(), new ThreadFactoryImpl());
+
+    @NonNull
+    private final VapNetworkFetcher fetcher;
+    @NonNull
+    private final String url;
+    @NonNull
+    private final String validator;
+    private final long contentLength;
+    private final int segmentCount;
+    @Nullable
+    private final VapDownloadReporter downloadReporter;
+    private final AtomicLong bytesWritten = new AtomicLong();
+
+    private final List<VapFetchResult> connections = new ArrayList<>();
+    private boolean aborted;
+    /**
+     * The first error of any segment, it aborts the others right away.
+     */
+    @Nullable
+    private Throwable failure;
+
+    SegmentedDownload(@NonNull VapNetworkFetcher fetcher, @NonNull String url, @NonNull String validator,
+                      long contentLength, int segmentCount, @Nullable VapDownloadReporter downloadReporter) {
+        this.fetcher = fetcher;
+        this.url = url;
+        this.validator = validator;
+        this.contentLength = contentLength;
+        this.segmentCount = segmentCount;
+        this.downloadReporter = downloadReporter;
+    }
+
+    /**
+     * Writes the whole resource into the channel, or throws if any of the segments failed.
+     *
+     * @param firstSegment a response whose body starts at byte 0, only the first segment is read from it.
+     */
+    @WorkerThread
+    void run(@NonNull VapFetchResult firstSegment, @NonNull FileChannel channel,
+             @Nullable VapCancellationToken cancellationToken) throws IOException {
+        long segmentSize = (contentLength + segmentCount - 1) / segmentCount;
+        List<Future<?>> futures = new ArrayList<>(segmentCount - 1);
+        Runnable abort = this::abort;
+        if (cancellationToken != null) {
+            cancellationToken.addOnCancelListener(abort);
+        }
+        try {
+            synchronized (this) {
+                // Closed by abort() as well, so that a failed segment stops the first one right away.
+                connections.add(firstSegment);
+            }
+            for (long start = segmentSize; start < contentLength; start += segmentSize) {
+                final long position = start;
+                final long length = Math.min(segmentSize, contentLength - start);
+                futures.add(EXECUTOR.submit(() -> {
+                    try {
+                        fetchSegment(channel, position, length, cancellationToken);
+                    } catch (IOException | RuntimeException e) {
+                        fail(e);
+                        throw e;
+                    }
+                    return null;
+                }));
+            }
+            writeSegment(firstSegment.bodyByteStream(), channel, 0, Math.min(segmentSize, contentLength), cancellationToken);
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            abort();
+            throw rethrow(e.getCause());
+        } catch (InterruptedException e) {
+            abort();
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while downloading " + url, e);
+        } catch (IOException | RuntimeException e) {
+            fail(e);
+            // The first segment most likely failed because another one aborted it, report the original error.
+            throw rethrow(failure());
+        } finally {
+            if (cancellationToken != null) {
+                cancellationToken.removeOnCancelListener(abort);
+            }
+            // The channel is closed by the caller, make sure no segment is still writing into it.
+            awaitQuietly(futures);
+        }
+    }
+
+    private void fetchSegment(FileChannel channel, long position, long length,
+                              @Nullable VapCancellationToken cancellationToken) throws IOException {
+        Map<String, String> headers = new HashMap<>();
+        headers.put("Range", "bytes=" + position + "-" + (position + length - 1));
+        headers.put("If-Range", validator);
+        VapFetchResult fetchResult = fetcher.fetchSync(url, headers);
+        try {
+            synchronized (this) {
+                if (aborted) {
+                    throw new IOException("Download of " + url + " was aborted.");
+                }
+                connections.add(fetchResult);
+            }
+            if (fetchResult.responseCode() != NetworkFetcher.HTTP_PARTIAL
+                    || NetworkFetcher.contentRangeStart(fetchResult) != position) {
+                // Most likely the resource changed since the first segment started.
+                throw new IOException("Unexpected response for range " + position + " of " + url
+                        + ": " + fetchResult.responseCode());
+            }
+            writeSegment(fetchResult.bodyByteStream(), channel, position, length, cancellationToken);
+        } finally {
+            VapCompositionFactory.closeQuietly(fetchResult);
+        }
+    }
+
+    private void writeSegment(InputStream stream, FileChannel channel, long position, long length,
+                              @Nullable VapCancellationToken cancellationToken) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(8 * 1024);
+        byte[] array = buffer.array();
+        long remaining = length;
+        while (remaining > 0) {
+            int read = stream.read(array, 0, (int) Math.min(array.length, remaining));
+            if (read == -1) {
+                throw new IOException("Range " + position + " of " + url + " ended " + remaining + " bytes early.");
+            }
+            if (cancellationToken != null) {
+                cancellationToken.throwIfCancelled();
+            }
+            buffer.clear();
+            buffer.limit(read);
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+            remaining -= read;
+            long written = bytesWritten.addAndGet(read);
+            if (downloadReporter != null) {
+                downloadReporter.reportProgress(written);
+            }
+        }
+    }
+
+    /**
+     * Records the first error and aborts the other segments.
+     */
+    private void fail(Throwable e) {
+        synchronized (this) {
+            if (failure == null) {
+                failure = e;
+            }
+        }
+        abort();
+    }
+
+    @Nullable
+    private synchronized Throwable failure() {
+        return failure;
+    }
+
+    private static IOException rethrow(@Nullable Throwable cause) {
+        if (cause instanceof IOException) {
+            return (IOException) cause;
+        }
+        if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+        }
+        return new IOException(cause);
+    }
+
+    /**
+     * Closes every open connection, which makes the segments that are still reading fail right away.
+     */
+    private void abort() {
+        List<VapFetchResult> connectionsCopy;
+        synchronized (this) {
+            aborted = true;
+            connectionsCopy = new ArrayList<>(connections);
+            connections.clear();
+        }
+        for (VapFetchResult connection : connectionsCopy) {
+            VapCompositionFactory.closeQuietly(connection);
+        }
+    }
+
+    private static void awaitQuietly(List<Future<?>> futures) {
+        boolean interrupted = false;
+        for (Future<?> future : futures) {
+            while (true) {
+                try {
+                    future.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    break;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static class ThreadFactoryImpl implements ThreadFactory {
+
+        private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+        @Override
+        public Thread newThread(@NonNull Runnable r) {
+            Thread thread = new Thread(() -> {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                r.run();
+            }, "VapSegment-" + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+
+    }
+
+}
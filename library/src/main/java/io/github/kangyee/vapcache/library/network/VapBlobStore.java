@@ -0,0 +1,164 @@
+package io.github.kangyee.vapcache.library.network;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.WorkerThread;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import io.github.kangyee.vapcache.library.logger.Logger;
+import okio.BufferedSink;
+import okio.BufferedSource;
+import okio.Okio;
+
+/**
+ * Stores cached animations by the SHA-256 digest of their content, so that urls serving the same bytes, e.g.
+ * signed CDN urls that rotate or the same file on different hosts, share a single file on disk.
+ * <p>
+ * A url entry is its metadata sidecar, which names the digest of its blob. Every blob has a {@code .refs} sidecar
+ * that lists the entries pointing at it. A blob is deleted once its last entry is removed, and evicting a blob
+ * deletes the entries that point at it. Blobs are sharded by their digest.
+ * <pre>
+ *     3/a/vap_blob_3a7bd3e2360a3d29eea436fcfb7e44c735d117c42d1c1835420b6b9942dd4f1b.mp4
+ *     3/a/vap_blob_3a7bd3e2360a3d29eea436fcfb7e44c735d117c42d1c1835420b6b9942dd4f1b.mp4.refs
+ *     0/e/vap_cache_0e5b1c7d9f2a4836b1c0d7e9a2f4b683.mp4.meta
+ *     c/7/vap_cache_c71a2d9e0b4f6c8a3e5d7b1f9a0c2e46.mp4.meta
+ * </pre>
+ */
+final class VapBlobStore {
+
+    static final String BLOB_PREFIX = "vap_blob_";
+
+    /**
+     * Sidecar of a blob, lists the names of the url entries that point at it, one per line.
+     */
+    static final String REFS_SUFFIX = ".refs";
+
+    private VapBlobStore() {
+    }
+
+    static File blobFile(File directory, String sha256) {
+        return new File(NetworkCache.shardDir(directory, sha256), BLOB_PREFIX + sha256 + FileExtension.MP4.extension);
+    }
+
+    static boolean isBlobFileName(String fileName) {
+        return fileName.startsWith(BLOB_PREFIX) && fileName.endsWith(FileExtension.MP4.extension);
+    }
+
+    /**
+     * Moves a completely written file into the blob with the given digest. A blob with the same digest has the same
+     * content, so it is simply replaced.
+     *
+     * @return the blob file.
+     * @throws IOException if the file could not be moved. It is deleted in that case.
+     */
+    @WorkerThread
+    static File commit(File directory, File file, String sha256) throws IOException {
+        File blobFile = blobFile(directory, sha256);
+        File shardDir = blobFile.getParentFile();
+        if (!shardDir.exists()) {
+            shardDir.mkdirs();
+        }
+        if (!file.renameTo(blobFile)) {
+            file.delete();
+            throw new IOException("Unable to rename cache file " + file.getAbsolutePath() + " to "
+                    + blobFile.getAbsolutePath() + ".");
+        }
+        return blobFile;
+    }
+
+    /**
+     * Records that the url entry with the given name points at the blob.
+     */
+    @WorkerThread
+    static void addReference(File blobFile, String entryName) {
+        Set<String> references = readReferences(blobFile);
+        if (references.add(entryName)) {
+            writeReferences(blobFile, references);
+        }
+    }
+
+    /**
+     * Records that the url entry with the given name no longer points at the blob.
+     *
+     * @return the number of entries that still point at the blob.
+     */
+    @WorkerThread
+    static int removeReference(File blobFile, String entryName) {
+        Set<String> references = readReferences(blobFile);
+        if (references.remove(entryName)) {
+            writeReferences(blobFile, references);
+        }
+        return references.size();
+    }
+
+    /**
+     * Called once a blob has been deleted. The url entries that point at it should be deleted as well, so they
+     * don't linger as misses until the next sweep.
+     *
+     * @return the names of the url entries that pointed at the blob.
+     */
+    @WorkerThread
+    static Set<String> deleteReferences(File blobFile) {
+        Set<String> references = readReferences(blobFile);
+        refsFile(blobFile).delete();
+        return references;
+    }
+
+    @NonNull
+    private static Set<String> readReferences(File blobFile) {
+        Set<String> references = new LinkedHashSet<>();
+        File refsFile = refsFile(blobFile);
+        if (!refsFile.exists()) {
+            return references;
+        }
+        try {
+            BufferedSource source = Okio.buffer(Okio.source(refsFile));
+            try {
+                String line;
+                while ((line = source.readUtf8Line()) != null) {
+                    if (!line.isEmpty()) {
+                        references.add(line);
+                    }
+                }
+            } finally {
+                source.close();
+            }
+        } catch (IOException e) {
+            Logger.INSTANCE.debug("Unable to read references of " + blobFile, e);
+        }
+        return references;
+    }
+
+    private static void writeReferences(File blobFile, Set<String> references) {
+        File refsFile = refsFile(blobFile);
+        if (references.isEmpty()) {
+            refsFile.delete();
+            return;
+        }
+        File tempFile = new File(refsFile.getAbsolutePath() + ".tmp");
+        try {
+            BufferedSink sink = Okio.buffer(Okio.sink(tempFile));
+            try {
+                for (String reference : references) {
+                    sink.writeUtf8(reference).writeUtf8("\n");
+                }
+            } finally {
+                sink.close();
+            }
+            if (!tempFile.renameTo(refsFile)) {
+                throw new IOException("Unable to rename " + tempFile);
+            }
+        } catch (IOException e) {
+            Logger.INSTANCE.debug("Unable to write references of " + blobFile, e);
+            tempFile.delete();
+        }
+    }
+
+    private static File refsFile(File blobFile) {
+        return new File(blobFile.getAbsolutePath() + REFS_SUFFIX);
+    }
+
+}
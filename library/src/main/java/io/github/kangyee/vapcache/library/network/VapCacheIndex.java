@@ -0,0 +1,103 @@
+package io.github.kangyee.vapcache.library.network;
+
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An in-memory copy of the metadata sidecars in the network cache directory, so that looking up an animation
+ * doesn't have to touch the file system. Which files exist is already known to {@link VapDiskLruCache}.
+ * <p>
+ * The index is {@link #load(File) loaded} once in the background. Until then, lookups fall back to the
+ * file system. Lookups never block, changes are serialized with the load so that it can't resurrect
+ * an entry that was removed in the meantime.
+ */
+final class VapCacheIndex {
+
+    private final Map<String, NetworkCache.Metadata> metadata = new ConcurrentHashMap<>();
+
+    /**
+     * Names of committed files that have passed the integrity check. Files are never rewritten under the same
+     * name with different content, so the check only has to run once per process.
+     */
+    private final Set<String> intactFiles = Collections.newSetFromMap(new ConcurrentHashMap<>());
+
+    private volatile boolean loaded;
+
+    boolean isLoaded() {
+        return loaded;
+    }
+
+    /**
+     * Reads every metadata sidecar in the shard directories. Changes made in the meantime wait for it.
+     */
+    @WorkerThread
+    synchronized void load(File directory) {
+        if (loaded) {
+            return;
+        }
+        for (File file : NetworkCache.listShardedFiles(directory)) {
+            String name = file.getName();
+            if (!NetworkCache.isMetadataFileName(name)) {
+                continue;
+            }
+            NetworkCache.Metadata entry = NetworkCache.readMetadata(file);
+            if (entry != null) {
+                metadata.put(NetworkCache.cacheFileNameForMetadata(name), entry);
+            }
+        }
+        loaded = true;
+    }
+
+    /**
+     * Returns the metadata of the entry with the given cache file name. Only meaningful once the index is loaded.
+     */
+    @Nullable
+    NetworkCache.Metadata getMetadata(String entryName) {
+        return metadata.get(entryName);
+    }
+
+    synchronized void putMetadata(String entryName, NetworkCache.Metadata entry) {
+        metadata.put(entryName, entry);
+    }
+
+    synchronized void removeMetadata(String entryName) {
+        metadata.remove(entryName);
+    }
+
+    /**
+     * Returns the number of entries that have metadata.
+     */
+    int size() {
+        return metadata.size();
+    }
+
+    boolean isIntact(String fileName) {
+        return intactFiles.contains(fileName);
+    }
+
+    void setIntact(String fileName) {
+        intactFiles.add(fileName);
+    }
+
+    /**
+     * Called once a committed file has been deleted.
+     */
+    void onFileRemoved(String fileName) {
+        intactFiles.remove(fileName);
+    }
+
+    /**
+     * Forgets every entry, the cache directory has been wiped. The index stays loaded since it is now exact.
+     */
+    synchronized void clear() {
+        metadata.clear();
+        intactFiles.clear();
+    }
+
+}
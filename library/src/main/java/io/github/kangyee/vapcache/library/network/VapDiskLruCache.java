@@ -0,0 +1,564 @@
+package io.github.kangyee.vapcache.library.network;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.RestrictTo;
+import androidx.annotation.WorkerThread;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import io.github.kangyee.vapcache.library.logger.Logger;
+
+/**
+ * A size bounded, access ordered index over the files in the network cache directory.
+ * <p>
+ * This is modeled after DiskLruCache: every access is appended to a journal file so the
+ * LRU order survives process restarts, and entries are evicted on a background thread once
+ * the total size exceeds {@link #getMaxSize()}. Unlike DiskLruCache, the files themselves are
+ * still written by {@link NetworkCache}, this class only tracks and evicts them.
+ * <p>
+ * Files are keyed by their path relative to the cache directory. The journal format is:
+ * <pre>
+ *     io.github.kangyee.vapcache.DiskLruCache
+ *     1
+ *
+ *     CLEAN 4/a/vap_cache_4a1f0c2e9b7d83a56f1e0d4c2b9a7e63.mp4 4718592
+ *     READ 4/a/vap_cache_4a1f0c2e9b7d83a56f1e0d4c2b9a7e63.mp4
+ *     REMOVE 4/a/vap_cache_4a1f0c2e9b7d83a56f1e0d4c2b9a7e63.mp4
+ * </pre>
+ */
+@RestrictTo(RestrictTo.Scope.LIBRARY)
+public class VapDiskLruCache {
+
+    static final String JOURNAL_FILE = "journal";
+    static final String JOURNAL_FILE_TEMP = "journal.tmp";
+    static final String JOURNAL_FILE_BACKUP = "journal.bkp";
+    static final String MAGIC = "io.github.kangyee.vapcache.DiskLruCache";
+    static final String VERSION = "1";
+
+    private static final String CLEAN = "CLEAN";
+    private static final String READ = "READ";
+    private static final String REMOVE = "REMOVE";
+
+    /**
+     * The journal is rebuilt once it holds this many operations that no longer describe
+     * the current state of the cache.
+     */
+    private static final int REDUNDANT_OP_COMPACT_THRESHOLD = 2000;
+
+    @NonNull
+    private final File directory;
+    private final File journalFile;
+    private final File journalFileTmp;
+    private final File journalFileBackup;
+    private long maxSize;
+    @Nullable
+    private final RemovalListener removalListener;
+
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(0, 0.75f, true);
+    private long size = 0;
+    private int redundantOpCount;
+    private Writer journalWriter;
+    private boolean initialized;
+    private boolean flushScheduled;
+
+    /**
+     * This cache uses a single background thread to evict entries.
+     */
+    private final ThreadPoolExecutor executorService = new ThreadPoolExecutor(0, 1, 60L, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(), r -> {
+        Thread thread = new Thread(r, "VapDiskLruCache");
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Runnable cleanupRunnable = () -> {
+        synchronized (VapDiskLruCache.this) {
+            if (journalWriter == null) {
+                return; // Closed.
+            }
+            try {
+                trimToSize();
+                if (journalRebuildRequired()) {
+                    rebuildJournal();
+                }
+            } catch (IOException e) {
+                Logger.INSTANCE.warning("Unable to clean up the vap disk cache.", e);
+            }
+        }
+    };
+
+    /**
+     * Writes the buffered READ lines to the journal, see {@link #recordRead(String)}.
+     */
+    private final Runnable flushRunnable = () -> {
+        synchronized (VapDiskLruCache.this) {
+            flushScheduled = false;
+            if (journalWriter == null) {
+                return; // Closed.
+            }
+            try {
+                journalWriter.flush();
+            } catch (IOException e) {
+                Logger.INSTANCE.warning("Unable to write to the vap disk cache journal.", e);
+            }
+        }
+    };
+
+    public VapDiskLruCache(@NonNull File directory, long maxSize) {
+        this(directory, maxSize, null);
+    }
+
+    /**
+     * @param removalListener is told about every file that is evicted or removed, so that it can clean up
+     *                        whatever belongs to the file. It is called while this cache is locked.
+     */
+    public VapDiskLruCache(@NonNull File directory, long maxSize, @Nullable RemovalListener removalListener) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        this.directory = directory;
+        this.journalFile = new File(directory, JOURNAL_FILE);
+        this.journalFileTmp = new File(directory, JOURNAL_FILE_TEMP);
+        this.journalFileBackup = new File(directory, JOURNAL_FILE_BACKUP);
+        this.maxSize = maxSize;
+        this.removalListener = removalListener;
+    }
+
+    /**
+     * Reads the journal if that hasn't happened yet.
+     *
+     * @return false if the journal is unusable, the cache doesn't track anything in that case.
+     */
+    @WorkerThread
+    public synchronized boolean initialize() {
+        return ensureInitialized();
+    }
+
+    /**
+     * Returns true if the journal knows about the given file, without recording an access.
+     */
+    @WorkerThread
+    public synchronized boolean contains(@NonNull String key) {
+        return ensureInitialized() && entries.containsKey(key);
+    }
+
+    /**
+     * Returns true if the journal knows about the given file and records the access.
+     * <p>
+     * This is called for every cache hit, so the access is only buffered and written to the journal on the
+     * background thread, together with the accesses made until then. Accesses that are lost in a crash merely
+     * make the entries look a little older.
+     */
+    @WorkerThread
+    public synchronized boolean recordRead(@NonNull String key) {
+        if (!ensureInitialized()) {
+            return false;
+        }
+        if (!entries.containsKey(key)) {
+            return false;
+        }
+        redundantOpCount++;
+        appendLine(READ + ' ' + key, false);
+        if (journalRebuildRequired()) {
+            executorService.execute(cleanupRunnable);
+        } else if (!flushScheduled) {
+            flushScheduled = true;
+            executorService.execute(flushRunnable);
+        }
+        return true;
+    }
+
+    /**
+     * Records that a file of the given size has been committed to the cache directory.
+     * This may schedule eviction of the least recently used entries.
+     */
+    @WorkerThread
+    public synchronized void recordWrite(@NonNull String key, long length) {
+        if (!ensureInitialized()) {
+            return;
+        }
+        Long previous = entries.put(key, length);
+        if (previous != null) {
+            size -= previous;
+            redundantOpCount++;
+        }
+        size += length;
+        appendLine(CLEAN + ' ' + key + ' ' + length);
+        if (size > maxSize || journalRebuildRequired()) {
+            executorService.execute(cleanupRunnable);
+        }
+    }
+
+    /**
+     * Drops the entry for the given file and deletes it from disk.
+     */
+    @WorkerThread
+    public synchronized void remove(@NonNull String key) {
+        if (!ensureInitialized()) {
+            return;
+        }
+        removeEntry(key);
+        if (journalRebuildRequired()) {
+            executorService.execute(cleanupRunnable);
+        }
+    }
+
+    /**
+     * Drops the entries whose file has been deleted behind the cache's back, e.g. by the system trimming
+     * the cache directory while the app is running.
+     *
+     * @return the number of dropped entries.
+     */
+    @WorkerThread
+    public synchronized int removeMissingFiles() {
+        if (!ensureInitialized()) {
+            return 0;
+        }
+        List<String> missing = new ArrayList<>();
+        for (String key : entries.keySet()) {
+            if (!new File(directory, key).exists()) {
+                missing.add(key);
+            }
+        }
+        for (String key : missing) {
+            removeEntry(key);
+        }
+        return missing.size();
+    }
+
+    /**
+     * Adopts files that were moved into the cache directory behind the cache's back and drops the entries whose
+     * file is gone, then trims the cache if it grew too large.
+     */
+    @WorkerThread
+    public synchronized void rescan() {
+        if (!ensureInitialized()) {
+            return;
+        }
+        processJournal();
+        adoptUntrackedFiles();
+        try {
+            rebuildJournal();
+        } catch (IOException e) {
+            Logger.INSTANCE.warning("Unable to rebuild the vap disk cache journal.", e);
+        }
+        if (size > maxSize) {
+            executorService.execute(cleanupRunnable);
+        }
+    }
+
+    public synchronized long size() {
+        return size;
+    }
+
+    public synchronized long getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Changes the maximum number of bytes the cache can store and queues a job
+     * to trim the existing store, if necessary.
+     */
+    public synchronized void setMaxSize(long maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        this.maxSize = maxSize;
+        if (initialized) {
+            executorService.execute(cleanupRunnable);
+        }
+    }
+
+    /**
+     * Closes the journal and forgets every entry. The next access reads the journal again,
+     * so this should be called after the cache directory has been wiped.
+     */
+    public synchronized void reset() {
+        if (journalWriter != null) {
+            try {
+                journalWriter.close();
+            } catch (IOException e) {
+                // Do nothing.
+            }
+        }
+        journalWriter = null;
+        entries.clear();
+        size = 0;
+        redundantOpCount = 0;
+        initialized = false;
+    }
+
+    private boolean ensureInitialized() {
+        if (initialized) {
+            return journalWriter != null;
+        }
+        initialized = true;
+        if (!directory.exists()) {
+            directory.mkdirs();
+        }
+
+        // If a bkp file exists, use it instead.
+        if (journalFileBackup.exists()) {
+            if (journalFile.exists()) {
+                journalFileBackup.delete();
+            } else {
+                journalFileBackup.renameTo(journalFile);
+            }
+        }
+
+        if (journalFile.exists()) {
+            try {
+                boolean truncated = readJournal();
+                processJournal();
+                if (truncated) {
+                    // Appending to the cut off line would corrupt the next one.
+                    rebuildJournal();
+                } else {
+                    journalWriter = new BufferedWriter(new OutputStreamWriter(
+                            new FileOutputStream(journalFile, true), StandardCharsets.US_ASCII));
+                }
+                return true;
+            } catch (IOException e) {
+                Logger.INSTANCE.warning("Vap disk cache journal is corrupt, rebuilding it.", e);
+                entries.clear();
+                size = 0;
+            }
+        }
+
+        adoptUntrackedFiles();
+        try {
+            rebuildJournal();
+        } catch (IOException e) {
+            Logger.INSTANCE.warning("Unable to create the vap disk cache journal.", e);
+            return false;
+        }
+        if (size > maxSize) {
+            executorService.execute(cleanupRunnable);
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the last line was cut off, e.g. by a crash while it was appended. It is dropped, like
+     * DiskLruCache does, instead of discarding the whole journal.
+     */
+    private boolean readJournal() throws IOException {
+        boolean truncated = !endsWithNewline(journalFile);
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(journalFile), StandardCharsets.US_ASCII))) {
+            String magic = reader.readLine();
+            String version = reader.readLine();
+            String blank = reader.readLine();
+            if (!MAGIC.equals(magic) || !VERSION.equals(version) || !"".equals(blank)) {
+                throw new IOException("unexpected journal header: [" + magic + ", " + version + ", " + blank + "]");
+            }
+
+            int lineCount = 0;
+            String line = reader.readLine();
+            while (line != null) {
+                String next = reader.readLine();
+                if (next == null && truncated) {
+                    Logger.INSTANCE.debug("Dropping the incomplete last line of the vap disk cache journal.");
+                    break;
+                }
+                readJournalLine(line);
+                lineCount++;
+                line = next;
+            }
+            redundantOpCount = lineCount - entries.size();
+        }
+        return truncated;
+    }
+
+    private static boolean endsWithNewline(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            long length = raf.length();
+            if (length == 0) {
+                return true;
+            }
+            raf.seek(length - 1);
+            return raf.read() == '\n';
+        }
+    }
+
+    private void readJournalLine(String line) throws IOException {
+        String[] parts = line.split(" ");
+        if (parts.length < 2) {
+            throw new IOException("unexpected journal line: " + line);
+        }
+        String key = parts[1];
+        if (REMOVE.equals(parts[0]) && parts.length == 2) {
+            entries.remove(key);
+        } else if (READ.equals(parts[0]) && parts.length == 2) {
+            // Touch the entry to move it to the end of the access order.
+            entries.get(key);
+        } else if (CLEAN.equals(parts[0]) && parts.length == 3) {
+            try {
+                entries.put(key, Long.parseLong(parts[2]));
+            } catch (NumberFormatException e) {
+                throw new IOException("unexpected journal line: " + line);
+            }
+        } else {
+            throw new IOException("unexpected journal line: " + line);
+        }
+    }
+
+    /**
+     * Computes the initial size and drops entries whose file has been removed behind our back,
+     * e.g. by the system trimming the cache directory.
+     */
+    private void processJournal() {
+        journalFileTmp.delete();
+        size = 0;
+        for (Iterator<Map.Entry<String, Long>> i = entries.entrySet().iterator(); i.hasNext(); ) {
+            Map.Entry<String, Long> entry = i.next();
+            if (new File(directory, entry.getKey()).exists()) {
+                size += entry.getValue();
+            } else {
+                i.remove();
+                redundantOpCount++;
+            }
+        }
+    }
+
+    /**
+     * Caches written before the journal existed are picked up here, oldest file first,
+     * so they take part in eviction instead of living forever.
+     */
+    private void adoptUntrackedFiles() {
+        List<File> candidates = NetworkCache.listShardedFiles(directory);
+        candidates.sort((a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+        for (File file : candidates) {
+            if (!file.isFile() || !NetworkCache.isCacheFileName(file.getName())) {
+                continue;
+            }
+            String key = NetworkCache.journalKey(file);
+            if (entries.containsKey(key)) {
+                continue;
+            }
+            long length = file.length();
+            entries.put(key, length);
+            size += length;
+        }
+    }
+
+    /**
+     * Creates a new journal that omits redundant information. This replaces the
+     * current journal if it exists.
+     */
+    private void rebuildJournal() throws IOException {
+        if (journalWriter != null) {
+            journalWriter.close();
+        }
+
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(journalFileTmp), StandardCharsets.US_ASCII))) {
+            writer.write(MAGIC);
+            writer.write("\n");
+            writer.write(VERSION);
+            writer.write("\n");
+            writer.write("\n");
+            for (Map.Entry<String, Long> entry : entries.entrySet()) {
+                writer.write(CLEAN + ' ' + entry.getKey() + ' ' + entry.getValue() + '\n');
+            }
+        }
+
+        if (journalFile.exists()) {
+            journalFile.renameTo(journalFileBackup);
+        }
+        if (!journalFileTmp.renameTo(journalFile)) {
+            throw new IOException("Unable to rename " + journalFileTmp + " to " + journalFile);
+        }
+        journalFileBackup.delete();
+
+        journalWriter = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(journalFile, true), StandardCharsets.US_ASCII));
+        redundantOpCount = 0;
+    }
+
+    /**
+     * We only rebuild the journal when it will halve the size of the journal
+     * and eliminate at least 2000 ops.
+     */
+    private boolean journalRebuildRequired() {
+        return redundantOpCount >= REDUNDANT_OP_COMPACT_THRESHOLD
+                && redundantOpCount >= entries.size();
+    }
+
+    private void trimToSize() {
+        while (size > maxSize && !entries.isEmpty()) {
+            String eldest = entries.keySet().iterator().next();
+            Logger.INSTANCE.debug("Evicting " + eldest + " from the vap disk cache.");
+            removeEntry(eldest);
+        }
+    }
+
+    private void removeEntry(String key) {
+        Long length = entries.remove(key);
+        File file = new File(directory, key);
+        if (file.exists() && !file.delete()) {
+            Logger.INSTANCE.debug("Unable to delete cache file " + file.getAbsolutePath() + ".");
+        }
+        if (removalListener != null) {
+            removalListener.onRemoved(file);
+        }
+        if (length == null) {
+            return;
+        }
+        size -= length;
+        redundantOpCount++;
+        appendLine(REMOVE + ' ' + key);
+    }
+
+    /**
+     * Cleans up after a file that left the cache.
+     */
+    public interface RemovalListener {
+
+        @WorkerThread
+        void onRemoved(@NonNull File file);
+
+    }
+
+    private void appendLine(String line) {
+        appendLine(line, true);
+    }
+
+    /**
+     * @param flush false if the line may stay buffered until the next flush, which also writes every line before it.
+     */
+    private void appendLine(String line, boolean flush) {
+        if (journalWriter == null) {
+            return;
+        }
+        try {
+            journalWriter.append(line).append('\n');
+            if (flush) {
+                journalWriter.flush();
+            }
+        } catch (IOException e) {
+            Logger.INSTANCE.warning("Unable to write to the vap disk cache journal.", e);
+        }
+    }
+
+}
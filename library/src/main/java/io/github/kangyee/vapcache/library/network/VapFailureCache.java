@@ -0,0 +1,139 @@
+package io.github.kangyee.vapcache.library.network;
+
+import android.os.SystemClock;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Remembers urls whose server answered with an error, so that they aren't requested again right away.
+ * <p>
+ * Failures are kept per url and status class, {@code 4xx} or {@code 5xx}. Every consecutive failure of the
+ * same class doubles the time until the url may be tried again, up to a cap, and a random part of the delay
+ * is dropped so that clients which failed together don't retry together. Client errors back off from a longer
+ * base delay since they rarely go away by themselves. A {@code Retry-After} header extends the delay.
+ * A successful fetch forgets every failure of the url.
+ * <p>
+ * Only the most recent {@link #MAX_ENTRIES} failures are kept.
+ */
+final class VapFailureCache {
+
+    private static final int MAX_ENTRIES = 256;
+
+    private static final long CLIENT_ERROR_BASE_DELAY_MS = 10_000L;
+    private static final long SERVER_ERROR_BASE_DELAY_MS = 1_000L;
+    private static final long MAX_DELAY_MS = 10 * 60_000L;
+
+    private final LinkedHashMap<String, Failure> failures = new LinkedHashMap<String, Failure>(0, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Failure> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    /**
+     * Throws if a request for the url failed recently and its backoff hasn't passed yet.
+     */
+    synchronized void throwIfBackingOff(@NonNull String url) throws BackoffException {
+        long now = SystemClock.elapsedRealtime();
+        for (int statusClass = 4; statusClass <= 5; statusClass++) {
+            Failure failure = failures.get(key(url, statusClass));
+            if (failure != null && now < failure.retryAt) {
+                throw new BackoffException("Not fetching " + url + " for another " + (failure.retryAt - now)
+                        + " ms, it failed " + failure.count + " times with HTTP " + failure.responseCode + ".");
+            }
+        }
+    }
+
+    /**
+     * Returns how much longer the url backs off, or 0 if it may be requested.
+     */
+    @VisibleForTesting
+    synchronized long remainingBackoffMs(@NonNull String url) {
+        long now = SystemClock.elapsedRealtime();
+        long remaining = 0;
+        for (int statusClass = 4; statusClass <= 5; statusClass++) {
+            Failure failure = failures.get(key(url, statusClass));
+            if (failure != null) {
+                remaining = Math.max(remaining, failure.retryAt - now);
+            }
+        }
+        return remaining;
+    }
+
+    /**
+     * Records a failed request. Only client and server errors are remembered.
+     *
+     * @param retryAfter the value of the {@code Retry-After} header, if any.
+     */
+    synchronized void onFailure(@NonNull String url, int responseCode, @Nullable String retryAfter) {
+        int statusClass = responseCode / 100;
+        if (statusClass != 4 && statusClass != 5) {
+            return;
+        }
+        String key = key(url, statusClass);
+        Failure failure = failures.get(key);
+        int count = failure != null ? failure.count + 1 : 1;
+        long baseDelay = statusClass == 4 ? CLIENT_ERROR_BASE_DELAY_MS : SERVER_ERROR_BASE_DELAY_MS;
+        long delay = Math.min(MAX_DELAY_MS, baseDelay << Math.min(count - 1, 20));
+        // Keep at least half of the delay so that the backoff still grows.
+        delay = delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+        delay = Math.max(delay, retryAfterMillis(retryAfter));
+        failures.put(key, new Failure(count, responseCode, SystemClock.elapsedRealtime() + delay));
+    }
+
+    synchronized void onSuccess(@NonNull String url) {
+        failures.remove(key(url, 4));
+        failures.remove(key(url, 5));
+    }
+
+    private static String key(String url, int statusClass) {
+        return statusClass + "xx " + url;
+    }
+
+    /**
+     * Only the delay-seconds form is understood, an HTTP date is ignored.
+     */
+    static long retryAfterMillis(@Nullable String retryAfter) {
+        if (retryAfter == null) {
+            return 0;
+        }
+        try {
+            return Math.min(MAX_DELAY_MS, Math.max(0, Long.parseLong(retryAfter.trim()) * 1000));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static final class Failure {
+
+        final int count;
+        final int responseCode;
+        final long retryAt;
+
+        Failure(int count, int responseCode, long retryAt) {
+            this.count = count;
+            this.responseCode = responseCode;
+            this.retryAt = retryAt;
+        }
+
+    }
+
+    /**
+     * Thrown instead of requesting a url that is backing off after a failure.
+     */
+    static final class BackoffException extends IOException {
+
+        BackoffException(String message) {
+            super(message);
+        }
+
+    }
+
+}
@@ -2,13 +2,11 @@ package io.github.kangyee.vapcache.library.network;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
-import androidx.annotation.RestrictTo;
 
 import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 
-@RestrictTo(RestrictTo.Scope.LIBRARY)
 public interface VapFetchResult extends Closeable {
 
     /**
@@ -22,6 +20,21 @@ public interface VapFetchResult extends Closeable {
     @NonNull
     InputStream bodyByteStream() throws IOException;
 
+    /**
+     * @return HTTP status code of the response, or -1 if it is unknown
+     */
+    default int responseCode() {
+        return isSuccessful() ? 200 : -1;
+    }
+
+    /**
+     * @return Value of the given response header, or null if it is missing or unknown
+     */
+    @Nullable
+    default String header(@NonNull String name) {
+        return null;
+    }
+
     /**
      * @return Type of content received
      */
@@ -1,16 +1,37 @@
 package io.github.kangyee.vapcache.library.network;
 
 import androidx.annotation.NonNull;
-import androidx.annotation.RestrictTo;
 import androidx.annotation.WorkerThread;
 
 import java.io.IOException;
+import java.util.Map;
 
-@RestrictTo(RestrictTo.Scope.LIBRARY)
 public interface VapNetworkFetcher {
 
     @WorkerThread
     @NonNull
     VapFetchResult fetchSync(@NonNull String url) throws IOException;
 
+    /**
+     * Same as {@link #fetchSync(String)} with additional request headers, e.g. {@code Range} to resume
+     * an interrupted download. Fetchers that can't send headers may ignore them, callers cope with a
+     * regular full response.
+     */
+    @WorkerThread
+    @NonNull
+    default VapFetchResult fetchSync(@NonNull String url, @NonNull Map<String, String> headers) throws IOException {
+        return fetchSync(url);
+    }
+
+    /**
+     * Returns a fetcher whose connect and read timeouts are at most {@code timeoutMs}, used when the caller only waits
+     * that long for the animation. Fetchers that can't change their timeouts return themselves.
+     *
+     * @param timeoutMs the time that is left, must be {@literal >} 0.
+     */
+    @NonNull
+    default VapNetworkFetcher withTimeout(long timeoutMs) {
+        return this;
+    }
+
 }
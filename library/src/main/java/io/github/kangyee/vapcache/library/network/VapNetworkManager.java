@@ -16,10 +16,106 @@ public class VapNetworkManager {
 
     private static VapNetworkFetcher fetcher;
     private static VapNetworkCacheProvider cacheProvider;
+    private static long maxDiskCacheSize = NetworkCache.DEFAULT_MAX_SIZE;
+    private static int segmentCount = 1;
+    private static long minSegmentedContentLength = NetworkFetcher.DEFAULT_MIN_SEGMENTED_CONTENT_LENGTH;
+    private static long minPlayableMediaBytes = NetworkFetcher.DEFAULT_MIN_PLAYABLE_MEDIA_BYTES;
+    private static boolean staleWhileRevalidate;
+    private static VapRetryPolicy retryPolicy = VapRetryPolicy.DEFAULT;
 
     private static volatile NetworkFetcher networkFetcher;
     private static volatile NetworkCache networkCache;
 
+    /**
+     * Set the maximum number of bytes the network disk cache may hold.
+     * This must be {@literal >} 0.
+     */
+    public static void setMaxDiskCacheSize(long size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("size <= 0");
+        }
+        maxDiskCacheSize = size;
+        NetworkCache local = networkCache;
+        if (local != null) {
+            local.setMaxSize(size);
+        }
+    }
+
+    /**
+     * Split downloads of at least {@code minContentLength} bytes into {@code segmentCount} concurrent range requests.
+     * A segment count of 1 disables it.
+     */
+    public static void setSegmentedDownload(int segmentCount, long minContentLength) {
+        if (segmentCount <= 0 || minContentLength <= 0) {
+            throw new IllegalArgumentException("segmentCount and minContentLength must be > 0");
+        }
+        synchronized (NetworkFetcher.class) {
+            VapNetworkManager.segmentCount = segmentCount;
+            VapNetworkManager.minSegmentedContentLength = minContentLength;
+            NetworkFetcher local = networkFetcher;
+            if (local != null) {
+                local.setSegmentedDownload(segmentCount, minContentLength);
+            }
+        }
+    }
+
+    /**
+     * Set how much media data must follow the {@code moov} box before a download is reported playable.
+     * This must be {@literal >} 0.
+     */
+    public static void setMinPlayableMediaBytes(long bytes) {
+        if (bytes <= 0) {
+            throw new IllegalArgumentException("bytes <= 0");
+        }
+        synchronized (NetworkFetcher.class) {
+            minPlayableMediaBytes = bytes;
+            NetworkFetcher local = networkFetcher;
+            if (local != null) {
+                local.setMinPlayableMediaBytes(bytes);
+            }
+        }
+    }
+
+    /**
+     * Serve expired cache entries right away and refresh them in the background.
+     */
+    public static void setStaleWhileRevalidate(boolean enabled) {
+        synchronized (NetworkFetcher.class) {
+            staleWhileRevalidate = enabled;
+            NetworkFetcher local = networkFetcher;
+            if (local != null) {
+                local.setStaleWhileRevalidate(enabled);
+            }
+        }
+    }
+
+    /**
+     * Set the fetcher that makes the network requests, e.g. an {@link OkHttpVapNetworkFetcher}. Fetches that
+     * start afterwards use it, fetches in flight finish with the previous one.
+     */
+    public static void setFetcher(@NonNull VapNetworkFetcher fetcher) {
+        synchronized (NetworkFetcher.class) {
+            VapNetworkManager.fetcher = fetcher;
+            NetworkFetcher local = networkFetcher;
+            if (local != null) {
+                local.setFetcher(fetcher);
+            }
+        }
+    }
+
+    /**
+     * Set how failed downloads are retried.
+     */
+    public static void setRetryPolicy(@NonNull VapRetryPolicy policy) {
+        synchronized (NetworkFetcher.class) {
+            retryPolicy = policy;
+            NetworkFetcher local = networkFetcher;
+            if (local != null) {
+                local.setRetryPolicy(policy);
+            }
+        }
+    }
+
     @NonNull
     public static NetworkFetcher networkFetcher(@NonNull Context context) {
         NetworkFetcher local = networkFetcher;
@@ -31,6 +127,10 @@ public class VapNetworkManager {
                             networkCache(context),
                             fetcher != null ? fetcher : new DefaultVapNetworkFetcher()
                     );
+                    local.setSegmentedDownload(segmentCount, minSegmentedContentLength);
+                    local.setMinPlayableMediaBytes(minPlayableMediaBytes);
+                    local.setStaleWhileRevalidate(staleWhileRevalidate);
+                    local.setRetryPolicy(retryPolicy);
                 }
             }
         }
@@ -49,7 +149,8 @@ public class VapNetworkManager {
                 local = networkCache;
                 if (local == null) {
                     networkCache = local = new NetworkCache(cacheProvider != null ? cacheProvider :
-                            () -> new File(appContext.getCacheDir(), "vap_network_cache"));
+                            () -> new File(appContext.getCacheDir(), "vap_network_cache"), maxDiskCacheSize);
+                    local.loadIndexAsync();
                 }
             }
         }
@@ -0,0 +1,81 @@
+package io.github.kangyee.vapcache.library.network;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.RestrictTo;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Decides whether and when a failed download is attempted again by {@link NetworkFetcher}.
+ * <p>
+ * The delay before the n-th retry is {@code initialDelayMs * 2^(n - 1)}, capped at {@code maxDelayMs}, of which
+ * a random fraction of up to {@code jitter} is dropped. A longer {@code Retry-After} of the server is honoured,
+ * unless it exceeds {@code maxDelayMs}, in which case the download isn't retried. Retries run within the task of
+ * the request, so every subscriber of a coalesced task shares them, and a download that has been cut off resumes
+ * where it stopped. The task gives up its thread while it waits for a retry.
+ * <p>
+ * By default I/O errors and the status codes 408, 429 and 5xx are retried. Override
+ * {@link #isRetryable(Exception, int)} to change that. Cancellations and downloads that don't have the expected
+ * digest are never retried.
+ */
+@RestrictTo(RestrictTo.Scope.LIBRARY)
+public class VapRetryPolicy {
+
+    /**
+     * Tries every download once.
+     */
+    public static final VapRetryPolicy NONE = new VapRetryPolicy(1, 0, 0, 0);
+
+    public static final VapRetryPolicy DEFAULT = new VapRetryPolicy(3, 1_000L, 30_000L, 0.5f);
+
+    private final int maxAttempts;
+    private final long initialDelayMs;
+    private final long maxDelayMs;
+    private final float jitter;
+
+    /**
+     * @param maxAttempts    the number of attempts including the first one, must be {@literal >} 0.
+     * @param initialDelayMs the delay before the first retry.
+     * @param maxDelayMs     the upper bound of any delay.
+     * @param jitter         the largest fraction of a delay that is randomly dropped, from 0 to 1.
+     */
+    public VapRetryPolicy(int maxAttempts, long initialDelayMs, long maxDelayMs, float jitter) {
+        if (maxAttempts <= 0 || initialDelayMs < 0 || maxDelayMs < initialDelayMs || jitter < 0 || jitter > 1) {
+            throw new IllegalArgumentException("Invalid retry policy");
+        }
+        this.maxAttempts = maxAttempts;
+        this.initialDelayMs = initialDelayMs;
+        this.maxDelayMs = maxDelayMs;
+        this.jitter = jitter;
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    public long getMaxDelayMs() {
+        return maxDelayMs;
+    }
+
+    /**
+     * @param exception    why the attempt failed.
+     * @param responseCode the HTTP status code of the failed response, or -1 if there was no response.
+     * @return true if the download should be attempted again, as long as attempts are left.
+     */
+    protected boolean isRetryable(@NonNull Exception exception, int responseCode) {
+        if (responseCode >= 0) {
+            return responseCode == 408 || responseCode == 429 || responseCode / 100 == 5;
+        }
+        return exception instanceof IOException;
+    }
+
+    /**
+     * Returns how long to wait before the given retry, the first retry is 1.
+     */
+    long delayMs(int retry) {
+        long delay = Math.min(maxDelayMs, initialDelayMs << Math.min(retry - 1, 20));
+        return delay - (long) (delay * jitter * ThreadLocalRandom.current().nextFloat());
+    }
+
+}
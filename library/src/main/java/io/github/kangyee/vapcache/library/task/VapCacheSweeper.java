@@ -0,0 +1,158 @@
+package io.github.kangyee.vapcache.library.task;
+
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.os.SystemClock;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.RestrictTo;
+import androidx.annotation.WorkerThread;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import io.github.kangyee.vapcache.library.logger.Logger;
+import io.github.kangyee.vapcache.library.model.VapCompositionCache;
+import io.github.kangyee.vapcache.library.model.VapExtractionCache;
+import io.github.kangyee.vapcache.library.network.NetworkCache;
+import io.github.kangyee.vapcache.library.network.VapNetworkManager;
+
+/**
+ * Deletes files that no cache refers to anymore: copies created by
+ * {@link VapCompositionFactory#fromInputStreamSync(Context, java.io.InputStream, String)} that fell out of
+ * the memory cache, extractions made by previous versions of the app, temporary files left
+ * behind by failed downloads and downloaded animations that expired long ago.
+ * <p>
+ * The sweep runs on a low priority background thread whenever the factory becomes idle after some work,
+ * at most once per {@link #MIN_SWEEP_INTERVAL_MS}. Only files older than {@link #GRACE_PERIOD_MS}
+ * are considered, so files that are still being written are never touched.
+ */
+@RestrictTo(RestrictTo.Scope.LIBRARY)
+public class VapCacheSweeper implements VapTaskIdleListener {
+
+    static final long GRACE_PERIOD_MS = TimeUnit.MINUTES.toMillis(10);
+    static final long MIN_SWEEP_INTERVAL_MS = TimeUnit.MINUTES.toMillis(5);
+
+    /**
+     * Interrupted downloads that can be resumed with a range request are kept for longer.
+     */
+    static final long RESUMABLE_GRACE_PERIOD_MS = TimeUnit.DAYS.toMillis(1);
+
+    /**
+     * Expired animations are kept this long so that they can be revalidated cheaply, after that nobody
+     * seems to need them anymore.
+     */
+    static final long EXPIRED_RETENTION_MS = TimeUnit.DAYS.toMillis(7);
+
+    private static final AtomicBoolean installed = new AtomicBoolean(false);
+
+    @NonNull
+    private final Context appContext;
+    private final AtomicBoolean sweeping = new AtomicBoolean(false);
+    private volatile long lastSweepUptime = -MIN_SWEEP_INTERVAL_MS;
+    /**
+     * Registering reports the current state right away, which is idle at cold start. The first sweep waits until
+     * some work has finished instead, so that it doesn't compete with the app's startup.
+     */
+    private volatile boolean wasBusy;
+
+    private final ThreadPoolExecutor executor = new ThreadPoolExecutor(0, 1, 30L, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(), r -> {
+        Thread thread = new Thread(r, "VapCacheSweeper");
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private VapCacheSweeper(@NonNull Context appContext) {
+        this.appContext = appContext;
+    }
+
+    /**
+     * Registers the sweeper with {@link VapCompositionFactory} the first time it is called.
+     * Subsequent calls are no-ops.
+     */
+    static void install(@Nullable Context context) {
+        if (context == null || installed.get()) {
+            return;
+        }
+        Context appContext = context.getApplicationContext();
+        if (appContext == null) {
+            appContext = context;
+        }
+        if (installed.compareAndSet(false, true)) {
+            VapCompositionFactory.registerVapTaskIdleListener(new VapCacheSweeper(appContext));
+        }
+    }
+
+    @Override
+    public void onIdleChanged(boolean idle) {
+        if (!idle) {
+            wasBusy = true;
+            return;
+        }
+        if (!wasBusy) {
+            return;
+        }
+        long now = SystemClock.uptimeMillis();
+        if (now - lastSweepUptime < MIN_SWEEP_INTERVAL_MS || !sweeping.compareAndSet(false, true)) {
+            return;
+        }
+        lastSweepUptime = now;
+        executor.execute(() -> {
+            try {
+                sweep();
+            } catch (Throwable e) {
+                Logger.INSTANCE.warning("Vap cache sweep failed.", e);
+            } finally {
+                sweeping.set(false);
+            }
+        });
+    }
+
+    @SuppressLint("RestrictedApi")
+    @WorkerThread
+    private void sweep() {
+        long now = System.currentTimeMillis();
+        long deadline = now - GRACE_PERIOD_MS;
+        int deleted = sweepInputStreamCopies(deadline);
+        deleted += VapExtractionCache.getInstance(appContext).deleteStaleFiles(deadline);
+
+        NetworkCache networkCache = VapNetworkManager.networkCache(appContext);
+        if (networkCache != null) {
+            deleted += networkCache.deleteStaleTempFiles(deadline, now - RESUMABLE_GRACE_PERIOD_MS);
+            deleted += networkCache.deleteExpiredEntries(now - EXPIRED_RETENTION_MS);
+            deleted += networkCache.removeMissingFiles();
+        }
+        if (deleted > 0) {
+            Logger.INSTANCE.debug("Vap cache sweep deleted " + deleted + " orphaned files.");
+        }
+    }
+
+    private int sweepInputStreamCopies(long deadline) {
+        File[] files = appContext.getCacheDir().listFiles();
+        if (files == null) {
+            return 0;
+        }
+        Set<File> referenced = new HashSet<>(VapCompositionCache.getInstance().snapshot());
+        int deleted = 0;
+        for (File file : files) {
+            if (!VapCompositionFactory.isInputStreamCopy(file.getName())
+                    || referenced.contains(file)
+                    || file.lastModified() > deadline) {
+                continue;
+            }
+            if (file.delete()) {
+                deleted++;
+            }
+        }
+        return deleted;
+    }
+
+}
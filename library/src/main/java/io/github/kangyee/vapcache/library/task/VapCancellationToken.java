@@ -0,0 +1,109 @@
+package io.github.kangyee.vapcache.library.task;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.RestrictTo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Signals the work behind a {@link VapTask} that nobody is interested in its result anymore.
+ * <p>
+ * Long running work should either poll {@link #throwIfCancelled()} or register an
+ * {@link #addOnCancelListener(Runnable) on cancel listener} that aborts blocking I/O,
+ * e.g. by closing the connection it is reading from.
+ */
+@RestrictTo(RestrictTo.Scope.LIBRARY)
+public final class VapCancellationToken {
+
+    private final List<Runnable> listeners = new ArrayList<>(1);
+    private boolean cancelled;
+    private long deadline = VapTask.NO_DEADLINE;
+
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Returns the time, in {@link android.os.SystemClock#elapsedRealtime()}, after which nobody waits for the result of
+     * the work anymore, or {@link VapTask#NO_DEADLINE}. The work still completes after it, e.g. to fill the cache, but
+     * shouldn't start anything it can't finish by then.
+     */
+    public synchronized long getDeadline() {
+        return deadline;
+    }
+
+    synchronized void setDeadline(long deadline) {
+        this.deadline = deadline;
+    }
+
+    /**
+     * @throws CancellationException if the token has been cancelled.
+     */
+    public void throwIfCancelled() {
+        if (isCancelled()) {
+            throw new CancellationException("The task has been cancelled.");
+        }
+    }
+
+    /**
+     * Adds a listener that is called once when the token gets cancelled.
+     * If the token has already been cancelled, the listener is called synchronously.
+     */
+    public void addOnCancelListener(@NonNull Runnable listener) {
+        synchronized (this) {
+            if (!cancelled) {
+                listeners.add(listener);
+                return;
+            }
+        }
+        listener.run();
+    }
+
+    public synchronized void removeOnCancelListener(@NonNull Runnable listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Waits for the given time, or until the token is cancelled.
+     *
+     * @return false if the wait was cut short.
+     */
+    public static boolean sleep(long delayMs, @Nullable VapCancellationToken cancellationToken) {
+        CountDownLatch cancelled = new CountDownLatch(1);
+        Runnable listener = cancelled::countDown;
+        if (cancellationToken != null) {
+            cancellationToken.addOnCancelListener(listener);
+        }
+        try {
+            return !cancelled.await(delayMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            if (cancellationToken != null) {
+                cancellationToken.removeOnCancelListener(listener);
+            }
+        }
+    }
+
+    void cancel() {
+        List<Runnable> listenersCopy;
+        synchronized (this) {
+            if (cancelled) {
+                return;
+            }
+            cancelled = true;
+            listenersCopy = new ArrayList<>(listeners);
+            listeners.clear();
+        }
+        for (Runnable listener : listenersCopy) {
+            listener.run();
+        }
+    }
+
+}
@@ -6,6 +6,8 @@ import android.annotation.SuppressLint;
 import android.content.Context;
 import android.content.res.Configuration;
 import android.content.res.Resources;
+import android.net.Uri;
+import android.os.SystemClock;
 
 import androidx.annotation.Nullable;
 import androidx.annotation.RawRes;
@@ -14,32 +16,39 @@ import androidx.annotation.WorkerThread;
 
 import java.io.Closeable;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Callable;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import io.github.kangyee.vapcache.library.logger.Logger;
 import io.github.kangyee.vapcache.library.model.VapCompositionCache;
+import io.github.kangyee.vapcache.library.model.VapExtractionCache;
 import io.github.kangyee.vapcache.library.network.NetworkCache;
+import io.github.kangyee.vapcache.library.network.VapNetworkFetcher;
 import io.github.kangyee.vapcache.library.network.VapNetworkManager;
+import io.github.kangyee.vapcache.library.network.VapRetryPolicy;
 import okio.BufferedSource;
 import okio.Okio;
 
 @RestrictTo(RestrictTo.Scope.LIBRARY)
 public class VapCompositionFactory {
 
-    private static final Map<String, VapTask<File>> taskCache = new HashMap<>();
-    private static final Set<VapTaskIdleListener> taskIdleListeners = new HashSet<>();
+    private static final ConcurrentHashMap<String, VapTask<File>> taskCache = new ConcurrentHashMap<>();
+    private static final AtomicInteger inFlightTaskCount = new AtomicInteger();
+    private static final Set<VapTaskIdleListener> taskIdleListeners = new CopyOnWriteArraySet<>();
 
     private VapCompositionFactory() {
 
@@ -53,9 +62,101 @@ public class VapCompositionFactory {
         VapCompositionCache.getInstance().resize(size);
     }
 
+    /**
+     * Set the maximum total size in bytes of the animation files kept cached in memory, least recently used
+     * animations are dropped first. The most recently used animation is always kept.
+     * This must be {@literal >} 0.
+     */
+    public static void setMaxCacheBytes(long bytes) {
+        VapCompositionCache.getInstance().setMaxBytes(bytes);
+    }
+
+    /**
+     * Returns the animation held in memory for the given cache key, or null on a miss.
+     * An entry's file is checked at most once every 30 seconds and a file that is gone counts as a miss,
+     * so this is cheap enough to call during composition.
+     */
+    @Nullable
+    public static File getCachedFile(@Nullable String cacheKey) {
+        return VapCompositionCache.getInstance().get(cacheKey);
+    }
+
+    /**
+     * Set the maximum number of bytes of downloaded animations to keep cached on disk.
+     * Least recently used animations are evicted in the background once this is exceeded.
+     * This must be {@literal >} 0.
+     */
+    public static void setMaxDiskCacheSize(long size) {
+        VapNetworkManager.setMaxDiskCacheSize(size);
+    }
+
+    /**
+     * Download large animations over several connections at the same time, each fetching its own byte range.
+     * This helps when a single connection can't use the whole link, e.g. for far away CDN edges.
+     * <p>
+     * Only animations of at least {@code minContentLength} bytes are split, and only if the server supports
+     * range requests and sends an ETag or Last-Modified header. Disabled by default.
+     *
+     * @param segmentCount the number of concurrent connections per download, 1 disables segmented downloads.
+     */
+    public static void setSegmentedDownload(int segmentCount, long minContentLength) {
+        VapNetworkManager.setSegmentedDownload(segmentCount, minContentLength);
+    }
+
+    /**
+     * Set how much media data must follow the {@code moov} box before a download from a url is reported playable,
+     * see {@link VapTask#addPlayableListener(VapListener)}. Larger values leave more headroom before playback
+     * catches up with the download. This must be {@literal >} 0.
+     */
+    public static void setMinPlayableMediaBytes(long bytes) {
+        VapNetworkManager.setMinPlayableMediaBytes(bytes);
+    }
+
+    /**
+     * Return downloaded animations whose freshness window passed right away and refresh them in the background,
+     * so the next request gets the updated animation. Concurrent refreshes of the same url are coalesced and a
+     * failed refresh never fails the request. Disabled by default, in which case expired animations are
+     * revalidated before they are returned.
+     */
+    public static void setStaleWhileRevalidate(boolean enabled) {
+        VapNetworkManager.setStaleWhileRevalidate(enabled);
+    }
+
+    /**
+     * Set the fetcher that downloads animations from urls. By default a new {@link java.net.HttpURLConnection} is
+     * opened for every download. Pass an {@link io.github.kangyee.vapcache.library.network.OkHttpVapNetworkFetcher}
+     * to share the app's OkHttp client, connection pool and dispatcher instead.
+     */
+    public static void setNetworkFetcher(VapNetworkFetcher fetcher) {
+        VapNetworkManager.setFetcher(fetcher);
+    }
+
+    /**
+     * Set how failed downloads are retried, by default I/O errors and server errors are retried twice with
+     * exponential backoff. Retries are shared by every request for the same animation, and a download that
+     * was cut off resumes where it stopped. Use {@link VapRetryPolicy#NONE} to disable retries.
+     */
+    public static void setRetryPolicy(VapRetryPolicy policy) {
+        VapNetworkManager.setRetryPolicy(policy);
+    }
+
+    /**
+     * Set how many downloads may run at the same time, and how many of those may download from the same host.
+     * Additional tasks are queued by priority. Tasks that don't download, e.g. loading an asset, don't count
+     * against these limits.
+     * Both must be {@literal >} 0.
+     */
+    public static void setMaxConcurrentTasks(int maxConcurrentTasks, int maxConcurrentTasksPerHost) {
+        VapTaskScheduler.getInstance().setMaxConcurrency(maxConcurrentTasks, maxConcurrentTasksPerHost);
+    }
+
     @SuppressLint("RestrictedApi")
     public static void clearCache(Context context) {
-        taskCache.clear();
+        for (String cacheKey : taskCache.keySet()) {
+            if (taskCache.remove(cacheKey) != null) {
+                onTaskUnregistered();
+            }
+        }
         VapCompositionCache.getInstance().clear();
         final NetworkCache networkCache = VapNetworkManager.networkCache(context);
         if (networkCache != null) {
@@ -68,10 +169,12 @@ public class VapCompositionFactory {
      * This can be used to provide data to an espresso idling resource.
      * Refer to FragmentVisibilityTests and its VapIdlingResource in the VapCache repo for
      * an example.
+     * <p>
+     * The listener may be called on any thread.
      */
     public static void registerVapTaskIdleListener(VapTaskIdleListener listener) {
         taskIdleListeners.add(listener);
-        listener.onIdleChanged(taskCache.size() == 0);
+        listener.onIdleChanged(inFlightTaskCount.get() == 0);
     }
 
     public static void unregisterVapTaskIdleListener(VapTaskIdleListener listener) {
@@ -86,7 +189,7 @@ public class VapCompositionFactory {
      * To skip the cache, add null as a third parameter.
      */
     public static VapTask<File> fromUrl(final Context context, final String url) {
-        return fromUrl(context, url, "url_" + url);
+        return fromUrl(context, url, urlCacheKey(url));
     }
 
     /**
@@ -94,15 +197,68 @@ public class VapCompositionFactory {
      * future use. Because of this, you may call `fromUrl` ahead of time to warm the cache if you think you
      * might need an animation in the future.
      */
-    @SuppressLint("RestrictedApi")
     public static VapTask<File> fromUrl(final Context context, final String url, @Nullable final String cacheKey) {
-        return cache(cacheKey, () -> {
-            VapResult<File> result = VapNetworkManager.networkFetcher(context).fetchSync(context, url, cacheKey);
-            if (cacheKey != null && result.getValue() != null) {
-                VapCompositionCache.getInstance().put(cacheKey, result.getValue());
-            }
-            return result;
-        }, null);
+        return fromUrl(context, url, cacheKey, VapTaskPriority.NORMAL);
+    }
+
+    /**
+     * Fetch an animation from an http url. Once it is downloaded once, VapCache will cache the file to disk for
+     * future use.
+     * <p>
+     * Use {@link VapTaskPriority#LOW} to warm the cache ahead of time without delaying animations
+     * that are about to be shown. If the animation is already being fetched, the shared task's priority is raised
+     * to the given priority but never lowered.
+     */
+    public static VapTask<File> fromUrl(final Context context, final String url, @Nullable final String cacheKey,
+                                        VapTaskPriority priority) {
+        return fromUrl(context, url, cacheKey, priority, null);
+    }
+
+    /**
+     * Same as {@link #fromUrl(Context, String, String, VapTaskPriority)}, but the animation must have the given
+     * SHA-256 digest. A download with a different digest fails instead of being cached, and a cached animation
+     * with a different digest is downloaded again.
+     *
+     * @param sha256 the hex encoded SHA-256 digest of the animation, or null to only verify its length.
+     */
+    public static VapTask<File> fromUrl(final Context context, final String url, @Nullable final String cacheKey,
+                                        VapTaskPriority priority, @Nullable final String sha256) {
+        VapCacheSweeper.install(context);
+        VapCancellationToken cancellationToken = new VapCancellationToken();
+        VapDownloadReporter downloadReporter = new VapDownloadReporter();
+        return cache(cacheKey, Uri.parse(url).getHost(), priority, cancellationToken, downloadReporter,
+                urlCallable(context, url, cacheKey, cancellationToken, downloadReporter, sha256), null);
+    }
+
+    /**
+     * Warm the cache with a batch of animations from http urls.
+     * <p>
+     * Urls that appear more than once are fetched once, animations already held in memory complete right away
+     * and animations that are already being fetched join the in-flight task. Animations on disk are served from the
+     * disk cache without touching the network. At most {@code maxConcurrency} animations of the batch are fetched at
+     * the same time and all of them run with {@link VapTaskPriority#LOW}.
+     *
+     * @return a handle to observe or cancel the batch.
+     */
+    public static VapPrefetch prefetch(final Context context, List<String> urls, int maxConcurrency,
+                                       @Nullable VapPrefetchListener listener) {
+        final Context appContext = context.getApplicationContext();
+        List<VapPrefetch.Item> items = new ArrayList<>(urls.size());
+        for (final String url : urls) {
+            final String cacheKey = urlCacheKey(url);
+            items.add(new VapPrefetch.Item(cacheKey, () -> fromUrl(appContext, url, cacheKey, VapTaskPriority.LOW)));
+        }
+        return prefetch(items, maxConcurrency, listener);
+    }
+
+    /**
+     * Same as {@link #prefetch(Context, List, int, VapPrefetchListener)} for arbitrary sources.
+     */
+    public static VapPrefetch prefetch(List<VapPrefetch.Item> items, int maxConcurrency,
+                                       @Nullable VapPrefetchListener listener) {
+        VapPrefetch prefetch = new VapPrefetch(items, maxConcurrency, listener);
+        prefetch.start();
+        return prefetch;
     }
 
     /**
@@ -112,7 +268,7 @@ public class VapCompositionFactory {
      */
     @WorkerThread
     public static VapResult<File> fromUrlSync(Context context, String url) {
-        return fromUrlSync(context, url, url);
+        return fromUrlSync(context, url, urlCacheKey(url));
     }
 
     /**
@@ -122,11 +278,68 @@ public class VapCompositionFactory {
      */
     @WorkerThread
     public static VapResult<File> fromUrlSync(Context context, String url, @Nullable String cacheKey) {
-        VapResult<File> result = VapNetworkManager.networkFetcher(context).fetchSync(context, url, cacheKey);
-        if (cacheKey != null && result.getValue() != null) {
-            VapCompositionCache.getInstance().put(cacheKey, result.getValue());
+        VapCacheSweeper.install(context);
+        return cacheSync(cacheKey, urlCallable(context, url, cacheKey, null, null, null));
+    }
+
+    /**
+     * Same as {@link #fromUrlSync(Context, String, String)}, but gives up waiting once {@code timeoutMs} have passed,
+     * e.g. because the animation is only useful if it is ready within that time.
+     * <p>
+     * The connect and read timeouts of the fetcher are lowered to the time that is left when an attempt starts, and a
+     * failed attempt isn't retried if the retry couldn't finish in time. The download isn't aborted at the deadline
+     * though, a late download still lands in the cache in the background: a read timeout bounds every stall of the
+     * body, not the whole transfer.
+     *
+     * @return the animation, or a result with a {@link TimeoutException} if it wasn't ready in time.
+     */
+    @WorkerThread
+    public static VapResult<File> fromUrlSync(Context context, String url, @Nullable String cacheKey, long timeoutMs) {
+        long deadline = SystemClock.elapsedRealtime() + timeoutMs;
+        VapTask<File> task;
+        // Keeps other callers that give up from cancelling the download while this one still waits. A task that was
+        // cancelled by its last subscriber right before we got it can't be joined anymore, it has already been
+        // replaced in the task cache.
+        do {
+            task = fromUrl(context, url, cacheKey, VapTaskPriority.HIGH);
+        } while (!task.acquire(deadline));
+        boolean timedOut = false;
+        try {
+            VapResult<File> result = task.awaitResult(timeoutMs, TimeUnit.MILLISECONDS);
+            if (result == null) {
+                timedOut = true;
+                return new VapResult<>(new TimeoutException(url + " wasn't fetched within " + timeoutMs + " ms."));
+            }
+            return result;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new VapResult<>(e);
+        } finally {
+            if (timedOut) {
+                task.detach(deadline);
+            } else {
+                task.release(deadline);
+            }
         }
-        return result;
+    }
+
+    @SuppressLint("RestrictedApi")
+    private static Callable<VapResult<File>> urlCallable(final Context context, final String url, @Nullable final String cacheKey,
+                                                         @Nullable final VapCancellationToken cancellationToken,
+                                                         @Nullable final VapDownloadReporter downloadReporter,
+                                                         @Nullable final String sha256) {
+        // The task calls this again for every retry, see VapRetryLaterException.
+        final AtomicInteger attempts = new AtomicInteger();
+        return () -> {
+            VapResult<File> result = VapNetworkManager.networkFetcher(context)
+                    .fetchSync(context, url, cacheKey, cancellationToken, downloadReporter, sha256,
+                            attempts.incrementAndGet(),
+                            cancellationToken != null ? cancellationToken.getDeadline() : VapTask.NO_DEADLINE);
+            if (cacheKey != null && result.getValue() != null) {
+                VapCompositionCache.getInstance().put(cacheKey, result.getValue());
+            }
+            return result;
+        };
     }
 
 
@@ -138,7 +351,7 @@ public class VapCompositionFactory {
      * To skip the cache, add null as a third parameter.
      */
     public static VapTask<File> fromAsset(Context context, final String fileName) {
-        String cacheKey = "asset_" + fileName;
+        String cacheKey = assetCacheKey(fileName);
         return fromAsset(context, fileName, cacheKey);
     }
 
@@ -164,7 +377,7 @@ public class VapCompositionFactory {
      */
     @WorkerThread
     public static VapResult<File> fromAssetSync(Context context, String fileName) {
-        String cacheKey = "asset_" + fileName;
+        String cacheKey = assetCacheKey(fileName);
         return fromAssetSync(context, fileName, cacheKey);
     }
 
@@ -178,7 +391,12 @@ public class VapCompositionFactory {
     @WorkerThread
     public static VapResult<File> fromAssetSync(Context context, String fileName, @Nullable String cacheKey) {
         try {
-            return fromInputStreamSync(context, context.getAssets().open(fileName), cacheKey);
+            if (cacheKey == null) {
+                return fromInputStreamSync(context, context.getAssets().open(fileName), null);
+            }
+            String extractionName = "asset_" + fileName.replaceAll("\\W+", "_")
+                    + "_" + Integer.toHexString(fileName.hashCode()) + ".mp4";
+            return fromExtractionSync(context, extractionName, () -> context.getAssets().open(fileName), cacheKey);
         } catch (IOException e) {
             return new VapResult<>(e);
         }
@@ -243,14 +461,61 @@ public class VapCompositionFactory {
     @WorkerThread
     public static VapResult<File> fromRawResSync(Context context, @RawRes int rawRes, @Nullable String cacheKey) {
         try {
-            BufferedSource source = Okio.buffer(source(context.getResources().openRawResource(rawRes)));
-            return fromInputStreamSync(context, source.inputStream(), cacheKey);
+            if (cacheKey == null) {
+                BufferedSource source = Okio.buffer(source(context.getResources().openRawResource(rawRes)));
+                return fromInputStreamSync(context, source.inputStream(), null);
+            }
+            String extractionName = "raw" + (isNightMode(context) ? "_night_" : "_day_") + rawRes + ".mp4";
+            return fromExtractionSync(context, extractionName,
+                    () -> Okio.buffer(source(context.getResources().openRawResource(rawRes))).inputStream(), cacheKey);
         } catch (Resources.NotFoundException e) {
             return new VapResult<>(e);
         }
     }
 
-    private static String rawResCacheKey(Context context, @RawRes int resId) {
+    /**
+     * Returns the persistent extraction for the given name, extracting it from the APK first
+     * if this version of the app hasn't done so yet.
+     */
+    @WorkerThread
+    private static VapResult<File> fromExtractionSync(Context context, String extractionName,
+                                                      Callable<InputStream> streamProvider, String cacheKey) {
+        VapCacheSweeper.install(context);
+        VapExtractionCache extractionCache = VapExtractionCache.getInstance(context);
+        File file = extractionCache.get(extractionName);
+        if (file == null) {
+            InputStream stream = null;
+            try {
+                stream = streamProvider.call();
+                file = extractionCache.put(extractionName, stream);
+            } catch (Exception e) {
+                return new VapResult<>(e);
+            } finally {
+                closeQuietly(stream);
+            }
+        }
+        VapCompositionCache.getInstance().put(cacheKey, file);
+        return new VapResult<>(file);
+    }
+
+    /**
+     * The cache key used by {@link #fromUrl(Context, String)}.
+     */
+    public static String urlCacheKey(String url) {
+        return "url_" + url;
+    }
+
+    /**
+     * The cache key used by {@link #fromAsset(Context, String)}.
+     */
+    public static String assetCacheKey(String fileName) {
+        return "asset_" + fileName;
+    }
+
+    /**
+     * The cache key used by {@link #fromRawRes(Context, int)}.
+     */
+    public static String rawResCacheKey(Context context, @RawRes int resId) {
         return "rawRes" + (isNightMode(context) ? "_night_" : "_day_") + resId;
     }
 
@@ -268,18 +533,20 @@ public class VapCompositionFactory {
      * @see #fromInputStreamSync(Context, InputStream, String)
      */
     public static VapTask<File> fromInputStream(@Nullable Context context, final InputStream stream, @Nullable final String cacheKey) {
-        return cache(cacheKey, () -> fromInputStreamSync(context, stream, cacheKey), () -> closeQuietly(stream));
+        return fromInputStream(context, stream, cacheKey, true);
     }
 
     /**
      * @see #fromInputStreamSync(Context, InputStream, String)
      */
     public static VapTask<File> fromInputStream(@Nullable Context context, final InputStream stream, @Nullable final String cacheKey, boolean close) {
-        return cache(cacheKey, () -> fromInputStreamSync(context, stream, cacheKey, close), () -> {
-            if (close) {
-                closeQuietly(stream);
-            }
-        });
+        VapDownloadReporter downloadReporter = new VapDownloadReporter();
+        return cache(cacheKey, null, VapTaskPriority.NORMAL, new VapCancellationToken(), downloadReporter,
+                () -> fromInputStreamSync(context, stream, cacheKey, close, downloadReporter), () -> {
+                    if (close) {
+                        closeQuietly(stream);
+                    }
+                });
     }
 
     /**
@@ -295,15 +562,36 @@ public class VapCompositionFactory {
      */
     @WorkerThread
     public static VapResult<File> fromInputStreamSync(@Nullable Context context, InputStream stream, @Nullable String cacheKey, boolean close) {
+        return fromInputStreamSync(context, stream, cacheKey, close, null);
+    }
+
+    /**
+     * Return a File for the given InputStream.
+     *
+     * @param downloadReporter receives the number of copied bytes after every buffer.
+     */
+    @WorkerThread
+    public static VapResult<File> fromInputStreamSync(@Nullable Context context, InputStream stream, @Nullable String cacheKey,
+                                                      boolean close, @Nullable VapDownloadReporter downloadReporter) {
+        VapCacheSweeper.install(context);
         try {
-            String fileName = System.currentTimeMillis() + ".mp4";
-            File tempFile = new File(context.getCacheDir(), fileName);
+            File tempFile = createInputStreamCopy(context.getCacheDir());
+            String fileName = tempFile.getName();
+            if (downloadReporter != null && stream instanceof FileInputStream) {
+                // For local files this is the remaining size of the file.
+                downloadReporter.setContentLength(stream.available());
+            }
             try {
                 try (OutputStream output = new FileOutputStream(tempFile)) {
                     byte[] buffer = new byte[4 * 1024];
                     int read;
+                    long written = 0;
                     while ((read = stream.read(buffer)) != -1) {
                         output.write(buffer, 0, read);
+                        written += read;
+                        if (downloadReporter != null) {
+                            downloadReporter.reportProgress(written);
+                        }
                     }
                     output.flush();
                 }
@@ -323,63 +611,181 @@ public class VapCompositionFactory {
         }
     }
 
+    /**
+     * Atomically reserves a new, unique {@code <timestamp>.mp4} file so that two copies made in
+     * the same millisecond never write into the same file.
+     */
+    private static File createInputStreamCopy(File dir) throws IOException {
+        long name = System.currentTimeMillis();
+        while (true) {
+            File file = new File(dir, name + ".mp4");
+            if (file.createNewFile()) {
+                return file;
+            }
+            name++;
+        }
+    }
+
+    /**
+     * Returns true if the file name matches the copies created by {@link #fromInputStreamSync(Context, InputStream, String, boolean)}.
+     */
+    static boolean isInputStreamCopy(String fileName) {
+        if (!fileName.endsWith(".mp4")) {
+            return false;
+        }
+        int length = fileName.length() - ".mp4".length();
+        if (length == 0) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (!Character.isDigit(fileName.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     /**
      * First, check to see if there are any in-progress tasks associated with the cache key and return it if there is.
      * If not, create a new task for the callable.
-     * Then, add the new task to the task cache and set up listeners so it gets cleared when done.
+     * Then, atomically publish the new task to the task cache and only start it once that succeeded,
+     * so concurrent callers for the same key always share exactly one task.
      */
     private static VapTask<File> cache(@Nullable final String cacheKey, Callable<VapResult<File>> callable,
                                        @Nullable Runnable onCached) {
+        return cache(cacheKey, null, VapTaskPriority.NORMAL, new VapCancellationToken(), null, callable, onCached);
+    }
+
+    /**
+     * @param host              the host the callable connects to, or null if it doesn't use the network.
+     * @param priority          the priority of the new task. An in-flight task for the same key is raised to this priority.
+     * @param cancellationToken the token observed by the callable. It is cancelled once every subscriber of the new task
+     *                          has released it, which also removes the task from the task cache.
+     * @param downloadReporter  the reporter the callable passes intermediate download states to, if any.
+     * @see #cache(String, Callable, Runnable)
+     */
+    private static VapTask<File> cache(@Nullable final String cacheKey, @Nullable String host, VapTaskPriority priority,
+                                       VapCancellationToken cancellationToken, @Nullable VapDownloadReporter downloadReporter,
+                                       Callable<VapResult<File>> callable, @Nullable Runnable onCached) {
         VapTask<File> task = null;
         final File cachedFile = cacheKey == null ? null : VapCompositionCache.getInstance().get(cacheKey);
         if (cachedFile != null) {
-            task = new VapTask<>(() -> new VapResult<>(cachedFile));
-        }
-        if (cacheKey != null && taskCache.containsKey(cacheKey)) {
+            // Memory hits complete synchronously, listeners added to this task are called right away.
+            task = VapTask.completed(new VapResult<>(cachedFile));
+        } else if (cacheKey != null) {
             task = taskCache.get(cacheKey);
         }
         if (task != null) {
             if (onCached != null) {
                 onCached.run();
             }
-            return task;
+            return task.raisePriority(priority);
         }
 
-        task = new VapTask<>(callable);
-        if (cacheKey != null) {
-            AtomicBoolean resultAlreadyCalled = new AtomicBoolean(false);
-            task.addListener(result -> {
-                taskCache.remove(cacheKey);
-                resultAlreadyCalled.set(true);
-                if (taskCache.size() == 0) {
-                    notifyTaskCacheIdleListeners(true);
-                }
-            });
-            task.addFailureListener(result -> {
-                taskCache.remove(cacheKey);
-                resultAlreadyCalled.set(true);
-                if (taskCache.size() == 0) {
-                    notifyTaskCacheIdleListeners(true);
-                }
-            });
-            // It is technically possible for the task to finish and for the listeners to get called
-            // before this code runs. If this happens, the task will be put in taskCache but never removed.
-            // This would require this thread to be sleeping at exactly this point in the code
-            // for long enough for the task to finish and call the listeners. Unlikely but not impossible.
-            if (!resultAlreadyCalled.get()) {
-                taskCache.put(cacheKey, task);
-                if (taskCache.size() == 1) {
-                    notifyTaskCacheIdleListeners(false);
-                }
+        if (cacheKey == null) {
+            VapTask<File> newTask = VapTask.lazy(callable, host, cancellationToken, downloadReporter);
+            newTask.setPriority(priority);
+            newTask.start();
+            return newTask;
+        }
+
+        VapTask<File> newTask = newInFlightTask(cacheKey, host, cancellationToken, downloadReporter, callable);
+        newTask.setPriority(priority);
+        task = taskCache.putIfAbsent(cacheKey, newTask);
+        if (task != null) {
+            // Another caller published a task for this key first.
+            if (onCached != null) {
+                onCached.run();
             }
+            return task.raisePriority(priority);
         }
+        onTaskRegistered();
+        newTask.start();
+        return newTask;
+    }
+
+    /**
+     * Same as {@link #cache(String, Callable, Runnable)} but the work runs on the calling thread if no
+     * other task for the key is in flight, otherwise this blocks until that task is done.
+     */
+    @WorkerThread
+    private static VapResult<File> cacheSync(@Nullable final String cacheKey, Callable<VapResult<File>> callable) {
+        VapTask<File> task;
+        if (cacheKey == null) {
+            // Runs as a task, which waits for the retries the callable asks for.
+            task = VapTask.lazy(callable, null, new VapCancellationToken());
+            task.runSync();
+        } else {
+            final File cachedFile = VapCompositionCache.getInstance().get(cacheKey);
+            if (cachedFile != null) {
+                return new VapResult<>(cachedFile);
+            }
+            task = taskCache.get(cacheKey);
+        }
+        if (task == null) {
+            VapTask<File> newTask = newInFlightTask(cacheKey, null, new VapCancellationToken(), null, callable);
+            task = taskCache.putIfAbsent(cacheKey, newTask);
+            if (task == null) {
+                onTaskRegistered();
+                newTask.runSync();
+                task = newTask;
+            }
+        }
+        try {
+            return task.awaitResult();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new VapResult<>(e);
+        }
+    }
+
+    /**
+     * Creates a task that removes itself from the task cache on the worker thread as soon as its work is done.
+     * By then the result is already in the memory cache, so later callers won't start the work again.
+     * A cancelled task removes itself right away, so later callers start a fresh task instead of joining it.
+     */
+    private static VapTask<File> newInFlightTask(final String cacheKey, @Nullable String host,
+                                                 VapCancellationToken cancellationToken,
+                                                 @Nullable VapDownloadReporter downloadReporter,
+                                                 final Callable<VapResult<File>> callable) {
+        final AtomicReference<VapTask<File>> self = new AtomicReference<>();
+        final Runnable unregister = () -> {
+            if (taskCache.remove(cacheKey, self.get())) {
+                onTaskUnregistered();
+            }
+        };
+        VapTask<File> task = VapTask.lazy(() -> {
+            VapResult<File> result = null;
+            try {
+                result = callable.call();
+                return result;
+            } finally {
+                // A task that waits for a retry is still in flight.
+                if (result == null || !(result.getException() instanceof VapRetryLaterException)) {
+                    unregister.run();
+                }
+            }
+        }, host, cancellationToken, downloadReporter);
+        self.set(task);
+        cancellationToken.addOnCancelListener(unregister);
         return task;
     }
 
+    private static void onTaskRegistered() {
+        if (inFlightTaskCount.incrementAndGet() == 1) {
+            notifyTaskCacheIdleListeners(false);
+        }
+    }
+
+    private static void onTaskUnregistered() {
+        if (inFlightTaskCount.decrementAndGet() == 0) {
+            notifyTaskCacheIdleListeners(true);
+        }
+    }
+
     private static void notifyTaskCacheIdleListeners(boolean idle) {
-        List<VapTaskIdleListener> listeners = new ArrayList<>(taskIdleListeners);
-        for (int i = 0; i < listeners.size(); i++) {
-            listeners.get(i).onIdleChanged(idle);
+        for (VapTaskIdleListener listener : taskIdleListeners) {
+            listener.onIdleChanged(idle);
         }
     }
 
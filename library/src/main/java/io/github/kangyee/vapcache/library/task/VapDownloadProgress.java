@@ -0,0 +1,80 @@
+package io.github.kangyee.vapcache.library.task;
+
+import androidx.annotation.NonNull;
+
+/**
+ * A snapshot of how far the download behind a {@link VapTask} has come.
+ *
+ * @see VapTask#addProgressListener(VapListener)
+ */
+public final class VapDownloadProgress {
+
+    private final long bytesRead;
+    private final long contentLength;
+    private final long bytesPerSecond;
+
+    public VapDownloadProgress(long bytesRead, long contentLength, long bytesPerSecond) {
+        this.bytesRead = bytesRead;
+        this.contentLength = contentLength;
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    /**
+     * @return the number of bytes on disk, including those of a resumed partial download.
+     */
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    /**
+     * @return the total size of the animation, or -1 if the server didn't tell.
+     */
+    public long getContentLength() {
+        return contentLength;
+    }
+
+    /**
+     * @return the average throughput since this download started, not counting resumed bytes.
+     */
+    public long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    /**
+     * @return the completed fraction between 0 and 1, or -1 if the content length is unknown.
+     */
+    public float getFraction() {
+        if (contentLength <= 0) {
+            return -1f;
+        }
+        return Math.min(1f, (float) bytesRead / contentLength);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof VapDownloadProgress)) {
+            return false;
+        }
+        VapDownloadProgress that = (VapDownloadProgress) o;
+        return bytesRead == that.bytesRead && contentLength == that.contentLength && bytesPerSecond == that.bytesPerSecond;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = (int) (bytesRead ^ (bytesRead >>> 32));
+        result = 31 * result + (int) (contentLength ^ (contentLength >>> 32));
+        result = 31 * result + (int) (bytesPerSecond ^ (bytesPerSecond >>> 32));
+        return result;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "VapDownloadProgress{bytesRead=" + bytesRead + ", contentLength=" + contentLength
+                + ", bytesPerSecond=" + bytesPerSecond + '}';
+    }
+
+}
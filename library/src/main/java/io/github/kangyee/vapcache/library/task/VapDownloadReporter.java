@@ -0,0 +1,207 @@
+package io.github.kangyee.vapcache.library.task;
+
+import android.os.SystemClock;
+import android.view.Choreographer;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.RestrictTo;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+/**
+ * Carries intermediate states of a download from the worker thread to the listeners of its {@link VapTask}.
+ * <p>
+ * The download reports {@link #reportPlayable(File) playable} at most once, either while the file is still
+ * growing or, at the latest, when the task completes successfully.
+ * <p>
+ * {@link #reportProgress(long) Progress} may be reported for every buffer that is copied. Listeners only see the
+ * latest value once per frame, so a fast download never floods the main thread. Direct progress listeners see every
+ * report on the thread of the download instead.
+ */
+@RestrictTo(RestrictTo.Scope.LIBRARY)
+public final class VapDownloadReporter {
+
+    private final Set<VapListener<File>> playableListeners = new LinkedHashSet<>(1);
+    private final Set<VapListener<VapDownloadProgress>> progressListeners = new LinkedHashSet<>(1);
+    private final Set<VapListener<VapDownloadProgress>> directProgressListeners = new CopyOnWriteArraySet<>();
+    private final Choreographer.FrameCallback progressFrameCallback = frameTimeNanos -> notifyProgressListeners();
+    private final Runnable scheduleProgressFrame =
+            () -> Choreographer.getInstance().postFrameCallback(progressFrameCallback);
+
+    @Nullable
+    private File playableFile;
+
+    private long contentLength = -1;
+    private long bytesRead = -1;
+    private long startBytes;
+    private long startTime;
+    private boolean progressFrameScheduled;
+
+    /**
+     * Called by the download once it knows the total size of the animation.
+     */
+    public synchronized void setContentLength(long contentLength) {
+        this.contentLength = contentLength;
+    }
+
+    /**
+     * Called by the download whenever more bytes are on disk. This is cheap enough to be called for every buffer.
+     *
+     * @param bytesRead the total number of bytes so far, including those of a resumed partial download.
+     */
+    public void reportProgress(long bytesRead) {
+        VapDownloadProgress progress = null;
+        boolean postFrame = false;
+        synchronized (this) {
+            if (this.bytesRead < 0) {
+                startBytes = bytesRead;
+                startTime = SystemClock.elapsedRealtime();
+            }
+            this.bytesRead = bytesRead;
+            if (!directProgressListeners.isEmpty()) {
+                progress = getProgress();
+            }
+            if (!progressFrameScheduled && !progressListeners.isEmpty()) {
+                progressFrameScheduled = true;
+                postFrame = true;
+            }
+        }
+        if (postFrame) {
+            VapTask.mainHandler().post(scheduleProgressFrame);
+        }
+        if (progress != null) {
+            for (VapListener<VapDownloadProgress> l : directProgressListeners) {
+                l.onResult(progress);
+            }
+        }
+    }
+
+    /**
+     * @return the latest progress, or null if nothing has been downloaded yet.
+     */
+    @Nullable
+    synchronized VapDownloadProgress getProgress() {
+        if (bytesRead < 0) {
+            return null;
+        }
+        long elapsed = SystemClock.elapsedRealtime() - startTime;
+        long bytesPerSecond = elapsed > 0 ? (bytesRead - startBytes) * 1000 / elapsed : 0;
+        return new VapDownloadProgress(bytesRead, contentLength, bytesPerSecond);
+    }
+
+    /**
+     * Called by the download once the file on disk is enough to start playback.
+     * Only the first call has an effect.
+     */
+    public void reportPlayable(@NonNull File file) {
+        synchronized (this) {
+            if (playableFile != null) {
+                return;
+            }
+            playableFile = file;
+            if (playableListeners.isEmpty()) {
+                // Listeners added from now on are called synchronously.
+                return;
+            }
+        }
+        VapTask.mainHandler().post(this::notifyPlayableListeners);
+    }
+
+    /**
+     * If the download has already been reported playable, the listener is called synchronously.
+     */
+    synchronized void addPlayableListener(@NonNull VapListener<File> listener) {
+        if (playableFile != null) {
+            listener.onResult(playableFile);
+            return;
+        }
+        playableListeners.add(listener);
+    }
+
+    synchronized void removePlayableListener(@NonNull VapListener<File> listener) {
+        playableListeners.remove(listener);
+    }
+
+    /**
+     * If some progress has already been reported, the listener is called with the latest value on the main thread
+     * as well, even if it was added from another thread.
+     */
+    void addProgressListener(@NonNull VapListener<VapDownloadProgress> listener) {
+        synchronized (this) {
+            progressListeners.add(listener);
+            if (bytesRead < 0) {
+                return;
+            }
+        }
+        VapTask.mainHandler().post(() -> {
+            VapDownloadProgress progress;
+            synchronized (this) {
+                if (!progressListeners.contains(listener)) {
+                    return;
+                }
+                progress = getProgress();
+            }
+            //noinspection ConstantConditions
+            listener.onResult(progress);
+        });
+    }
+
+    synchronized void removeProgressListener(@NonNull VapListener<VapDownloadProgress> listener) {
+        progressListeners.remove(listener);
+    }
+
+    /**
+     * Adds a listener that is called on the thread of the download for every report. If some progress has already
+     * been reported, the listener is called synchronously with the latest value.
+     */
+    void addDirectProgressListener(@NonNull VapListener<VapDownloadProgress> listener) {
+        VapDownloadProgress progress;
+        synchronized (this) {
+            directProgressListeners.add(listener);
+            progress = getProgress();
+        }
+        if (progress != null) {
+            listener.onResult(progress);
+        }
+    }
+
+    void removeDirectProgressListener(@NonNull VapListener<VapDownloadProgress> listener) {
+        directProgressListeners.remove(listener);
+    }
+
+    private void notifyProgressListeners() {
+        List<VapListener<VapDownloadProgress>> listenersCopy;
+        VapDownloadProgress progress;
+        synchronized (this) {
+            progressFrameScheduled = false;
+            progress = getProgress();
+            listenersCopy = new ArrayList<>(progressListeners);
+        }
+        if (progress == null) {
+            return;
+        }
+        for (VapListener<VapDownloadProgress> l : listenersCopy) {
+            l.onResult(progress);
+        }
+    }
+
+    private void notifyPlayableListeners() {
+        List<VapListener<File>> listenersCopy;
+        File file;
+        synchronized (this) {
+            file = playableFile;
+            listenersCopy = new ArrayList<>(playableListeners);
+            playableListeners.clear();
+        }
+        for (VapListener<File> l : listenersCopy) {
+            l.onResult(file);
+        }
+    }
+
+}
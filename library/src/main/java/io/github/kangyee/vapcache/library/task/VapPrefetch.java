@@ -0,0 +1,205 @@
+package io.github.kangyee.vapcache.library.task;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+
+import io.github.kangyee.vapcache.library.logger.Logger;
+
+/**
+ * A batch of animations that are fetched ahead of time.
+ * <p>
+ * Duplicate items are dropped, memory cache hits complete right away and items that are already being
+ * fetched join the in-flight task. At most {@code maxConcurrency} items of the batch are outstanding at
+ * the same time, every task runs with {@link VapTaskPriority#LOW} so on-screen animations are not delayed.
+ */
+public final class VapPrefetch {
+
+    /**
+     * One animation of the batch.
+     */
+    public static final class Item {
+
+        @NonNull
+        final String cacheKey;
+        @NonNull
+        final Callable<VapTask<File>> taskFactory;
+
+        /**
+         * @param cacheKey    identifies the animation, items with the same key are fetched once.
+         * @param taskFactory creates (or joins) the task for the animation. It is called on the thread that
+         *                    completed the previous item, or the caller's thread for the first items.
+         */
+        public Item(@NonNull String cacheKey, @NonNull Callable<VapTask<File>> taskFactory) {
+            this.cacheKey = cacheKey;
+            this.taskFactory = taskFactory;
+        }
+
+    }
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final ArrayDeque<Item> pendingItems;
+    private final List<VapTask<File>> runningTasks = new ArrayList<>();
+    private final int total;
+    private final int maxConcurrency;
+    @Nullable
+    private final VapPrefetchListener listener;
+
+    private int completed;
+    private int succeeded;
+    private boolean cancelled;
+
+    VapPrefetch(Collection<Item> items, int maxConcurrency, @Nullable VapPrefetchListener listener) {
+        if (maxConcurrency <= 0) {
+            throw new IllegalArgumentException("maxConcurrency <= 0");
+        }
+        Map<String, Item> distinctItems = new LinkedHashMap<>();
+        for (Item item : items) {
+            if (!distinctItems.containsKey(item.cacheKey)) {
+                distinctItems.put(item.cacheKey, item);
+            }
+        }
+        this.pendingItems = new ArrayDeque<>(distinctItems.values());
+        this.total = pendingItems.size();
+        this.maxConcurrency = maxConcurrency;
+        this.listener = listener;
+    }
+
+    void start() {
+        if (total == 0) {
+            handler.post(() -> {
+                if (listener != null) {
+                    listener.onComplete(0, 0);
+                }
+            });
+            return;
+        }
+        startNext();
+    }
+
+    public int getTotal() {
+        return total;
+    }
+
+    public synchronized int getCompleted() {
+        return completed;
+    }
+
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Stops the batch. Items that haven't started are skipped and downloads nobody else is waiting for
+     * are aborted. {@link VapPrefetchListener#onComplete(int, int)} is still called once.
+     */
+    public void cancel() {
+        List<VapTask<File>> tasks;
+        synchronized (this) {
+            if (cancelled || completed == total) {
+                return;
+            }
+            cancelled = true;
+            pendingItems.clear();
+            tasks = new ArrayList<>(runningTasks);
+        }
+        for (VapTask<File> task : tasks) {
+            task.release();
+        }
+        int succeededCount;
+        int failedCount;
+        synchronized (this) {
+            succeededCount = succeeded;
+            failedCount = total - succeeded;
+        }
+        handler.post(() -> {
+            if (listener != null) {
+                listener.onComplete(succeededCount, failedCount);
+            }
+        });
+    }
+
+    private void startNext() {
+        while (true) {
+            Item item;
+            synchronized (this) {
+                if (cancelled || runningTasks.size() >= maxConcurrency || pendingItems.isEmpty()) {
+                    return;
+                }
+                item = pendingItems.poll();
+            }
+            VapTask<File> task;
+            try {
+                task = item.taskFactory.call();
+            } catch (Exception e) {
+                onItemResult(item, null, new VapResult<>(e));
+                continue;
+            }
+            if (task == null || !task.acquire()) {
+                onItemResult(item, null, new VapResult<>(new CancellationException("Unable to start " + item.cacheKey)));
+                continue;
+            }
+            synchronized (this) {
+                runningTasks.add(task);
+            }
+            task.addCompletionListener(result -> {
+                onItemResult(item, task, result);
+                startNext();
+            });
+        }
+    }
+
+    private void onItemResult(Item item, @Nullable VapTask<File> task, VapResult<File> result) {
+        int completedCount;
+        int succeededCount;
+        boolean done;
+        synchronized (this) {
+            if (task != null && !runningTasks.remove(task)) {
+                // Already released by cancel().
+                return;
+            }
+            if (cancelled) {
+                if (task != null) {
+                    task.release();
+                }
+                return;
+            }
+            completed++;
+            if (result.getValue() != null) {
+                succeeded++;
+            }
+            completedCount = completed;
+            succeededCount = succeeded;
+            done = completed == total;
+        }
+        if (task != null) {
+            task.release();
+        }
+        if (result.getException() != null) {
+            Logger.INSTANCE.debug("Prefetch of " + item.cacheKey + " failed.", result.getException());
+        }
+        handler.post(() -> {
+            if (listener == null) {
+                return;
+            }
+            listener.onItemResult(item.cacheKey, result);
+            listener.onProgress(completedCount, total);
+            if (done) {
+                listener.onComplete(succeededCount, total - succeededCount);
+            }
+        });
+    }
+
+}
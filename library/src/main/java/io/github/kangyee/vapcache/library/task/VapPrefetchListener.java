@@ -0,0 +1,29 @@
+package io.github.kangyee.vapcache.library.task;
+
+import java.io.File;
+
+/**
+ * Receives the outcome of a batch started with {@link VapCompositionFactory#prefetch}.
+ * All callbacks are called on the main thread.
+ */
+public interface VapPrefetchListener {
+
+    /**
+     * Called once for every distinct item of the batch.
+     *
+     * @param cacheKey the cache key of the item.
+     * @param result   the file, or the exception if the item could not be fetched.
+     */
+    void onItemResult(String cacheKey, VapResult<File> result);
+
+    /**
+     * Called after every item result with the aggregate progress of the batch.
+     */
+    void onProgress(int completed, int total);
+
+    /**
+     * Called once after the last item completed or the batch was cancelled.
+     */
+    void onComplete(int succeeded, int failed);
+
+}
@@ -0,0 +1,28 @@
+package io.github.kangyee.vapcache.library.task;
+
+import androidx.annotation.Nullable;
+import androidx.annotation.RestrictTo;
+
+/**
+ * Returned as the failure of a task's work to have the work run again once the delay has passed, instead of
+ * waiting for it on a worker thread. The task keeps its subscribers and listeners meanwhile, none of them sees
+ * this exception.
+ */
+@RestrictTo(RestrictTo.Scope.LIBRARY)
+public final class VapRetryLaterException extends Exception {
+
+    private final long delayMs;
+
+    /**
+     * @param cause why the work failed this time.
+     */
+    public VapRetryLaterException(long delayMs, @Nullable Throwable cause) {
+        super("Retrying in " + delayMs + " ms.", cause);
+        this.delayMs = delayMs;
+    }
+
+    public long getDelayMs() {
+        return delayMs;
+    }
+
+}
@@ -3,39 +3,119 @@ package io.github.kangyee.vapcache.library.task;
 import android.annotation.SuppressLint;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
 
+import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.annotation.RestrictTo;
+import androidx.annotation.WorkerThread;
 
+import java.io.File;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
 import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
 
 import io.github.kangyee.vapcache.library.logger.Logger;
 
 @RestrictTo(RestrictTo.Scope.LIBRARY)
 public class VapTask<T> {
 
-    public static Executor EXECUTOR = Executors.newCachedThreadPool();
+    /**
+     * Runs every task. By default this is the bounded, priority aware {@link VapTaskScheduler}.
+     * Any other executor may be used instead, but task priorities are ignored in that case.
+     */
+    public static Executor EXECUTOR = VapTaskScheduler.getInstance();
+
+    /**
+     * The deadline of a subscriber that waits for the result as long as it takes, see {@link #acquire(long)}.
+     */
+    public static final long NO_DEADLINE = Long.MAX_VALUE;
 
     private final Set<VapListener<T>> successListeners = new LinkedHashSet<>(1);
     private final Set<VapListener<Throwable>> failureListeners = new LinkedHashSet<>(1);
-    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Set<VapListener<VapResult<T>>> completionListeners = new LinkedHashSet<>(1);
+
+    private final CountDownLatch completion = new CountDownLatch(1);
 
     @Nullable
     private volatile VapResult<T> result = null;
 
+    /**
+     * The work of a task created by {@link #lazy(Callable, String, VapCancellationToken)} that hasn't been started yet.
+     */
+    @Nullable
+    private Callable<VapResult<T>> pending;
+
+    @Nullable
+    private String host;
+    @NonNull
+    private VapTaskPriority priority = VapTaskPriority.NORMAL;
+    @Nullable
+    private VapTaskScheduler.Job scheduledJob;
+
+    @NonNull
+    private VapCancellationToken cancellationToken = new VapCancellationToken();
+    @NonNull
+    private VapDownloadReporter downloadReporter = new VapDownloadReporter();
+    private int subscribers;
+    /**
+     * The deadlines of the subscribers that only wait until then, see {@link #acquire(long)}.
+     */
+    private final List<Long> deadlines = new ArrayList<>(1);
+    private boolean cancelled;
+    /**
+     * Set when a subscriber stopped waiting without giving up on the result, and no subscriber has been acquired since.
+     * Releasing the remaining subscribers doesn't cancel the task in that case.
+     */
+    private boolean detached;
+
     @RestrictTo(RestrictTo.Scope.LIBRARY)
     public VapTask(Callable<VapResult<T>> runnable) {
         this(runnable, false);
     }
 
+    private VapTask() {
+    }
+
+    /**
+     * Creates a task that doesn't run until {@link #start()} or {@link #runSync()} is called.
+     * This allows the task to be published (e.g. to the in-flight task cache) before any of its
+     * listeners can possibly be called.
+     *
+     * @param host              the host the task connects to, used to limit concurrent connections per host.
+     * @param cancellationToken the token the runnable observes, cancelled once the last subscriber is released.
+     */
+    static <T> VapTask<T> lazy(Callable<VapResult<T>> runnable, @Nullable String host,
+                               @NonNull VapCancellationToken cancellationToken) {
+        return lazy(runnable, host, cancellationToken, null);
+    }
+
+    /**
+     * @param downloadReporter the reporter the runnable passes intermediate states of its download to.
+     * @see #lazy(Callable, String, VapCancellationToken)
+     */
+    static <T> VapTask<T> lazy(Callable<VapResult<T>> runnable, @Nullable String host,
+                               @NonNull VapCancellationToken cancellationToken,
+                               @Nullable VapDownloadReporter downloadReporter) {
+        VapTask<T> task = new VapTask<>();
+        task.pending = runnable;
+        task.host = host;
+        task.cancellationToken = cancellationToken;
+        if (downloadReporter != null) {
+            task.downloadReporter = downloadReporter;
+        }
+        return task;
+    }
+
     /**
      * runNow is only used for testing.
      */
@@ -48,16 +128,300 @@ public class VapTask<T> {
                 setResult(new VapResult<>(e));
             }
         } else {
-            EXECUTOR.execute(new VapFutureTask(runnable));
+            schedule(new VapFutureTask(runnable));
+        }
+    }
+
+    /**
+     * Returns a task that has already completed with the given result, e.g. for a memory cache hit. Listeners added
+     * to it are called right away.
+     */
+    static <T> VapTask<T> completed(@NonNull VapResult<T> result) {
+        VapTask<T> task = new VapTask<>();
+        task.setResult(result);
+        return task;
+    }
+
+    /**
+     * Schedules a task created by {@link #lazy(Callable, String, VapCancellationToken)} on {@link #EXECUTOR}.
+     */
+    void start() {
+        schedule(new VapFutureTask(takePending()));
+    }
+
+    private void schedule(Runnable runnable) {
+        schedule(runnable, 0);
+    }
+
+    private synchronized void schedule(Runnable runnable, long delayMs) {
+        Executor executor = EXECUTOR;
+        if (executor instanceof VapTaskScheduler) {
+            scheduledJob = ((VapTaskScheduler) executor).submit(runnable, priority, host, delayMs);
+        } else if (delayMs > 0) {
+            VapTaskScheduler.getInstance().executeLater(executor, runnable, delayMs);
+        } else {
+            executor.execute(runnable);
+        }
+    }
+
+    /**
+     * Runs the work again once the delay asked for by a {@link VapRetryLaterException} has passed. The worker thread
+     * and its slot in the scheduler are free meanwhile.
+     */
+    private void retryLater(Callable<VapResult<T>> runnable, @NonNull VapRetryLaterException retry) {
+        if (cancellationToken.isCancelled()) {
+            setResult(new VapResult<>(new CancellationException("The task has been cancelled.")));
+            return;
+        }
+        if (isPastDeadline(retry)) {
+            setResult(new VapResult<>(causeOf(retry)));
+            return;
+        }
+        schedule(new VapFutureTask(runnable), retry.getDelayMs());
+    }
+
+    /**
+     * Returns true if the retry would only complete after every subscriber has given up waiting, so the failure
+     * might as well be reported now. A task nobody waits for anymore isn't retried either.
+     */
+    private boolean isPastDeadline(@NonNull VapRetryLaterException retry) {
+        long deadline = cancellationToken.getDeadline();
+        return deadline != NO_DEADLINE && SystemClock.elapsedRealtime() + retry.getDelayMs() >= deadline;
+    }
+
+    @NonNull
+    private static Throwable causeOf(@NonNull VapRetryLaterException retry) {
+        return retry.getCause() != null ? retry.getCause() : retry;
+    }
+
+    @NonNull
+    public synchronized VapTaskPriority getPriority() {
+        return priority;
+    }
+
+    /**
+     * Changes the priority of this task. If the task is still waiting for a thread,
+     * it is moved in the queue accordingly.
+     *
+     * @return the task for call chaining.
+     */
+    public synchronized VapTask<T> setPriority(@NonNull VapTaskPriority priority) {
+        this.priority = priority;
+        VapTaskScheduler.Job job = scheduledJob;
+        if (job != null && EXECUTOR instanceof VapTaskScheduler) {
+            ((VapTaskScheduler) EXECUTOR).setPriority(job, priority);
+        }
+        return this;
+    }
+
+    /**
+     * Same as {@link #setPriority(VapTaskPriority)}, but never lowers the current priority.
+     * This is used when several callers share a task.
+     *
+     * @return the task for call chaining.
+     */
+    public synchronized VapTask<T> raisePriority(@NonNull VapTaskPriority priority) {
+        if (priority.compareTo(this.priority) > 0) {
+            setPriority(priority);
+        }
+        return this;
+    }
+
+    /**
+     * Registers interest in the result of this task. Every successful call must be balanced by a call to
+     * {@link #release()} once the caller is no longer interested, e.g. because its UI went away.
+     * <p>
+     * Tasks that were never acquired are never cancelled, so plain listeners keep working as before.
+     *
+     * @return false if the task has already been cancelled, in which case a new task should be requested.
+     */
+    public boolean acquire() {
+        return acquire(NO_DEADLINE);
+    }
+
+    /**
+     * Same as {@link #acquire()} for a subscriber that only waits until the given time. Connections of the task are
+     * bounded by the time that is left and failed attempts aren't retried if no subscriber would wait for the retry.
+     * Pass the same deadline when the subscriber is released or detached.
+     *
+     * @param deadline the time in {@link SystemClock#elapsedRealtime()}, or {@link #NO_DEADLINE}.
+     */
+    public synchronized boolean acquire(long deadline) {
+        if (cancelled) {
+            return false;
+        }
+        subscribers++;
+        if (deadline != NO_DEADLINE) {
+            deadlines.add(deadline);
+        }
+        detached = false;
+        updateDeadline();
+        return true;
+    }
+
+    /**
+     * Gives up interest acquired through {@link #acquire()}. Once the last subscriber is released
+     * before the task completed, the task is cancelled: it is removed from the queue if it hasn't started,
+     * otherwise its {@link VapCancellationToken} aborts the running work.
+     */
+    public void release() {
+        release(NO_DEADLINE);
+    }
+
+    /**
+     * Gives up interest acquired through {@link #acquire(long)}, see {@link #release()}.
+     */
+    public void release(long deadline) {
+        boolean cancel;
+        synchronized (this) {
+            if (subscribers == 0) {
+                return;
+            }
+            subscribers--;
+            deadlines.remove(Long.valueOf(deadline));
+            updateDeadline();
+            cancel = subscribers == 0 && result == null && !cancelled && !detached;
+            if (cancel) {
+                cancelled = true;
+            }
+        }
+        if (cancel) {
+            cancel();
+        }
+    }
+
+    /**
+     * Gives up interest acquired through {@link #acquire()} like {@link #release()}, but doesn't cancel the task. This
+     * is used when a caller stops waiting because its deadline passed, so that a download which finishes late still
+     * lands in the cache. Subscribers that are released after this don't cancel the task either, unless it is
+     * acquired again in the meantime.
+     * <p>
+     * Once no subscriber is left, the task only finishes the attempt that is in flight and isn't retried.
+     *
+     * @param deadline the deadline the subscriber was acquired with.
+     */
+    public synchronized void detach(long deadline) {
+        if (subscribers == 0) {
+            return;
+        }
+        subscribers--;
+        deadlines.remove(Long.valueOf(deadline));
+        detached = true;
+        updateDeadline();
+    }
+
+    /**
+     * Passes the latest deadline of the subscribers to the work through its {@link VapCancellationToken}.
+     */
+    private void updateDeadline() {
+        long deadline;
+        if (subscribers == 0) {
+            // Nobody waits for a detached task anymore, while a task that was never acquired has listeners.
+            deadline = detached ? Math.min(cancellationToken.getDeadline(), SystemClock.elapsedRealtime()) : NO_DEADLINE;
+        } else if (deadlines.size() < subscribers) {
+            deadline = NO_DEADLINE;
+        } else {
+            deadline = Collections.max(deadlines);
         }
+        cancellationToken.setDeadline(deadline);
+    }
+
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    private void cancel() {
+        Logger.INSTANCE.debug("Cancelling task, no subscribers left.");
+        cancellationToken.cancel();
+
+        VapTaskScheduler.Job job;
+        synchronized (this) {
+            job = scheduledJob;
+        }
+        Executor executor = EXECUTOR;
+        if (job != null && executor instanceof VapTaskScheduler && ((VapTaskScheduler) executor).remove(job)) {
+            // The task never started, so nothing else will set its result.
+            setResult(new VapResult<>(new CancellationException("The task has been cancelled.")));
+        }
+    }
+
+    /**
+     * Runs a task created by {@link #lazy(Callable, String, VapCancellationToken)} on the calling thread.
+     * Retries the work asks for are waited for on the calling thread too.
+     */
+    @WorkerThread
+    void runSync() {
+        Callable<VapResult<T>> runnable = takePending();
+        VapResult<T> result;
+        try {
+            result = runnable.call();
+            while (result != null && result.getException() instanceof VapRetryLaterException) {
+                VapRetryLaterException retry = (VapRetryLaterException) result.getException();
+                if (isPastDeadline(retry)) {
+                    result = new VapResult<>(causeOf(retry));
+                    break;
+                }
+                if (!VapCancellationToken.sleep(retry.getDelayMs(), cancellationToken)) {
+                    result = new VapResult<>(new CancellationException("The task has been cancelled."));
+                    break;
+                }
+                result = runnable.call();
+            }
+        } catch (Throwable e) {
+            result = new VapResult<>(e);
+        }
+        setResult(result);
+    }
+
+    private synchronized Callable<VapResult<T>> takePending() {
+        Callable<VapResult<T>> runnable = pending;
+        if (runnable == null) {
+            throw new IllegalStateException("A task may only be started once.");
+        }
+        pending = null;
+        return runnable;
+    }
+
+    /**
+     * Blocks the calling thread until the task has a result.
+     */
+    @WorkerThread
+    @NonNull
+    public VapResult<T> awaitResult() throws InterruptedException {
+        completion.await();
+        //noinspection ConstantConditions
+        return result;
+    }
+
+    /**
+     * Same as {@link #awaitResult()}, but gives up after the given time.
+     *
+     * @return the result, or null if the task didn't complete in time.
+     */
+    @WorkerThread
+    @Nullable
+    public VapResult<T> awaitResult(long timeout, @NonNull TimeUnit unit) throws InterruptedException {
+        return completion.await(timeout, unit) ? result : null;
     }
 
     private void setResult(@Nullable VapResult<T> result) {
-        if (this.result != null) {
-            throw new IllegalStateException("A task may only be set once.");
+        List<VapListener<VapResult<T>>> completionListenersCopy;
+        synchronized (this) {
+            if (this.result != null) {
+                throw new IllegalStateException("A task may only be set once.");
+            }
+            this.result = result;
+            completionListenersCopy = new ArrayList<>(completionListeners);
+            completionListeners.clear();
+        }
+        completion.countDown();
+        for (VapListener<VapResult<T>> l : completionListenersCopy) {
+            l.onResult(result);
+        }
+        if (result != null && result.getValue() instanceof File) {
+            downloadReporter.reportPlayable((File) result.getValue());
         }
-        this.result = result;
-        notifyListeners();
+        notifyListeners(!completionListenersCopy.isEmpty());
     }
 
     /**
@@ -75,6 +439,115 @@ public class VapTask<T> {
         return this;
     }
 
+    /**
+     * Add a listener that is called once with the result, on whichever thread completed the task.
+     * Unlike {@link #addListener(VapListener)} this never posts to the main thread, so it is suited
+     * for background consumers. If the task has completed, the listener will be called synchronously.
+     *
+     * @return the task for call chaining.
+     */
+    public VapTask<T> addCompletionListener(VapListener<VapResult<T>> listener) {
+        VapResult<T> result;
+        synchronized (this) {
+            result = this.result;
+            if (result == null) {
+                completionListeners.add(listener);
+                return this;
+            }
+        }
+        listener.onResult(result);
+        return this;
+    }
+
+    /**
+     * Remove a given completion listener.
+     *
+     * @return the task for call chaining.
+     */
+    public synchronized VapTask<T> removeCompletionListener(VapListener<VapResult<T>> listener) {
+        completionListeners.remove(listener);
+        return this;
+    }
+
+    /**
+     * Add a listener that is called on the main thread as soon as the animation can start playing.
+     * <p>
+     * Downloads from a url report this while the file is still being written, once its {@code moov} box and
+     * the leading media data are on disk (see {@link VapCompositionFactory#setMinPlayableMediaBytes(long)}).
+     * The reported file is the growing temporary file, which is renamed when the download completes. Open it
+     * right away, an open descriptor keeps reading the same file while the rest of it is written.
+     * <p>
+     * Every other task reports its result once it completes successfully. The listener is called at most once,
+     * synchronously if the task is already playable.
+     *
+     * @return the task for call chaining.
+     */
+    public VapTask<T> addPlayableListener(VapListener<File> listener) {
+        VapResult<T> result = this.result;
+        if (result != null && result.getValue() instanceof File) {
+            listener.onResult((File) result.getValue());
+            return this;
+        }
+        downloadReporter.addPlayableListener(listener);
+        return this;
+    }
+
+    /**
+     * Add a listener for the download progress of this task. It is called on the main thread, at most once per
+     * frame with the latest progress, until the task completes. Only tasks that download or copy a stream report
+     * progress. If some progress has already been reported, the listener is first called with it from a message
+     * posted to the main thread.
+     *
+     * @return the task for call chaining.
+     */
+    public VapTask<T> addProgressListener(VapListener<VapDownloadProgress> listener) {
+        downloadReporter.addProgressListener(listener);
+        return this;
+    }
+
+    /**
+     * Remove a given progress listener.
+     *
+     * @return the task for call chaining.
+     */
+    public VapTask<T> removeProgressListener(VapListener<VapDownloadProgress> listener) {
+        downloadReporter.removeProgressListener(listener);
+        return this;
+    }
+
+    /**
+     * Add a listener for the download progress of this task that is called on the thread of the download, for every
+     * buffer that is written. Unlike {@link #addProgressListener(VapListener)} this never posts to the main thread, so
+     * it is suited for background consumers that coalesce the updates themselves. If some progress has already been
+     * reported, the listener is called synchronously with it.
+     *
+     * @return the task for call chaining.
+     */
+    public VapTask<T> addDirectProgressListener(VapListener<VapDownloadProgress> listener) {
+        downloadReporter.addDirectProgressListener(listener);
+        return this;
+    }
+
+    /**
+     * Remove a given direct progress listener.
+     *
+     * @return the task for call chaining.
+     */
+    public VapTask<T> removeDirectProgressListener(VapListener<VapDownloadProgress> listener) {
+        downloadReporter.removeDirectProgressListener(listener);
+        return this;
+    }
+
+    /**
+     * Remove a given playable listener.
+     *
+     * @return the task for call chaining.
+     */
+    public VapTask<T> removePlayableListener(VapListener<File> listener) {
+        downloadReporter.removePlayableListener(listener);
+        return this;
+    }
+
     /**
      * Remove a given task listener. The task will continue to execute so you can re-add
      * a listener if necessary.
@@ -113,14 +586,33 @@ public class VapTask<T> {
         return this;
     }
 
-    private void notifyListeners() {
-        // Listeners should be called on the main thread.
-        handler.post(() -> {
-            // Local reference in case it gets set on a background thread.
-            VapResult<T> result = VapTask.this.result;
-            if (result == null) {
-                return;
+    /**
+     * Returns the handler of the main thread, shared by every task and created on first use.
+     */
+    static Handler mainHandler() {
+        return MainHandlerHolder.INSTANCE;
+    }
+
+    private void notifyListeners(boolean completionObserved) {
+        VapResult<T> result = this.result;
+        if (result == null) {
+            return;
+        }
+        boolean observed;
+        synchronized (this) {
+            observed = result.getValue() != null ? !successListeners.isEmpty() : !failureListeners.isEmpty();
+        }
+        if (!observed) {
+            // Nobody listens on the main thread, e.g. only completion listeners were added, so nothing is posted.
+            // Listeners added from now on are called synchronously.
+            if (result.getException() != null && !completionObserved) {
+                Logger.INSTANCE.warning("VapCache encountered an error but no failure listener was added:",
+                        result.getException());
             }
+            return;
+        }
+        // Listeners should be called on the main thread.
+        mainHandler().post(() -> {
             if (result.getValue() != null) {
                 notifySuccessListeners(result.getValue());
             } else {
@@ -153,9 +645,19 @@ public class VapTask<T> {
         }
     }
 
+    private static final class MainHandlerHolder {
+
+        static final Handler INSTANCE = new Handler(Looper.getMainLooper());
+
+    }
+
     private class VapFutureTask extends FutureTask<VapResult<T>> {
+
+        private final Callable<VapResult<T>> callable;
+
         VapFutureTask(Callable<VapResult<T>> callable) {
             super(callable);
+            this.callable = callable;
         }
 
         @Override
@@ -165,10 +667,16 @@ public class VapTask<T> {
                 return;
             }
 
+            VapResult<T> result;
             try {
-                setResult(get());
+                result = get();
             } catch (InterruptedException | ExecutionException e) {
-                setResult(new VapResult<>(e));
+                result = new VapResult<>(e);
+            }
+            if (result != null && result.getException() instanceof VapRetryLaterException) {
+                retryLater(callable, (VapRetryLaterException) result.getException());
+            } else {
+                setResult(result);
             }
         }
     }
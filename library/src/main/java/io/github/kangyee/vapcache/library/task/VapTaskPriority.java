@@ -0,0 +1,24 @@
+package io.github.kangyee.vapcache.library.task;
+
+/**
+ * The order in which queued {@link VapTask}s are started by {@link VapTaskScheduler}.
+ * Tasks with the same priority are started in the order they were submitted.
+ */
+public enum VapTaskPriority {
+
+    /**
+     * Work nobody is waiting for yet, e.g. warming the cache ahead of time.
+     */
+    LOW,
+
+    /**
+     * The default priority.
+     */
+    NORMAL,
+
+    /**
+     * Work for an animation that is about to be shown on screen.
+     */
+    HIGH
+
+}
@@ -0,0 +1,357 @@
+package io.github.kangyee.vapcache.library.task;
+
+import android.os.Process;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.RestrictTo;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded executor for {@link VapTask}s.
+ * <p>
+ * At most {@link #getMaxConcurrency()} network jobs run at the same time and at most
+ * {@link #getMaxConcurrencyPerHost()} of them may target the same host. Jobs that don't use the network, e.g.
+ * reading an asset, have their own budget of {@link #getMaxLocalConcurrency()}, so they never wait for a slow
+ * download and never hold up one. Everything else waits in a priority queue, so work for animations that are on
+ * screen starts before prefetch work.
+ * Queued jobs can be reordered with {@link #setPriority(Job, VapTaskPriority)}. A job may also be submitted with a
+ * delay, e.g. to retry work later. It doesn't hold a thread or count against any limit until the delay has passed.
+ * <p>
+ * A running job that opens additional connections to its host, e.g. for a segmented download, charges them against
+ * the host's limit with {@link #acquireHostConnections(String, int)}.
+ */
+@RestrictTo(RestrictTo.Scope.LIBRARY)
+public class VapTaskScheduler implements Executor {
+
+    public static final int DEFAULT_MAX_CONCURRENCY = 4;
+    public static final int DEFAULT_MAX_CONCURRENCY_PER_HOST = 2;
+    public static final int DEFAULT_MAX_LOCAL_CONCURRENCY = 2;
+
+    private static final VapTaskScheduler INSTANCE = new VapTaskScheduler();
+
+    public static VapTaskScheduler getInstance() {
+        return INSTANCE;
+    }
+
+    private final PriorityQueue<Job> readyJobs = new PriorityQueue<>();
+    /**
+     * Jobs submitted with a delay that hasn't passed yet.
+     */
+    private final Set<Job> delayedJobs = new HashSet<>();
+    private final Map<String, Integer> runningJobsPerHost = new HashMap<>();
+    private int runningNetworkJobs;
+    private int runningLocalJobs;
+    private long nextSequence;
+    private int maxConcurrency = DEFAULT_MAX_CONCURRENCY;
+    private int maxConcurrencyPerHost = DEFAULT_MAX_CONCURRENCY_PER_HOST;
+    private int maxLocalConcurrency = DEFAULT_MAX_LOCAL_CONCURRENCY;
+
+    /**
+     * The number of threads is bounded by {@link #maxConcurrency} and {@link #maxLocalConcurrency} through
+     * {@link #promoteAndExecute()}, this pool only keeps idle threads around for reuse.
+     */
+    private final ThreadPoolExecutor workers = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60L, TimeUnit.SECONDS,
+            new SynchronousQueue<>(), new ThreadFactoryImpl());
+
+    /**
+     * Only moves delayed jobs to the queue once they are due, they run on {@link #workers}.
+     */
+    private final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, new ThreadFactoryImpl());
+
+    private VapTaskScheduler() {
+        timer.setKeepAliveTime(60L, TimeUnit.SECONDS);
+        timer.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Set the maximum number of network jobs that may run at the same time, and how many of those may target the
+     * same host. Both must be {@literal >} 0.
+     */
+    public void setMaxConcurrency(int maxConcurrency, int maxConcurrencyPerHost) {
+        if (maxConcurrency <= 0 || maxConcurrencyPerHost <= 0) {
+            throw new IllegalArgumentException("maxConcurrency and maxConcurrencyPerHost must be > 0");
+        }
+        synchronized (this) {
+            this.maxConcurrency = maxConcurrency;
+            this.maxConcurrencyPerHost = maxConcurrencyPerHost;
+        }
+        promoteAndExecute();
+    }
+
+    public synchronized int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    public synchronized int getMaxConcurrencyPerHost() {
+        return maxConcurrencyPerHost;
+    }
+
+    /**
+     * Set the maximum number of jobs without a host that may run at the same time, must be {@literal >} 0.
+     */
+    public void setMaxLocalConcurrency(int maxLocalConcurrency) {
+        if (maxLocalConcurrency <= 0) {
+            throw new IllegalArgumentException("maxLocalConcurrency must be > 0");
+        }
+        synchronized (this) {
+            this.maxLocalConcurrency = maxLocalConcurrency;
+        }
+        promoteAndExecute();
+    }
+
+    public synchronized int getMaxLocalConcurrency() {
+        return maxLocalConcurrency;
+    }
+
+    @Override
+    public void execute(@NonNull Runnable command) {
+        submit(command, VapTaskPriority.NORMAL, null);
+    }
+
+    /**
+     * Queues the runnable.
+     *
+     * @param host the host the job is going to connect to, or null if it doesn't use the network.
+     * @return a handle that can be used to reorder or remove the job while it is still queued.
+     */
+    @NonNull
+    public Job submit(@NonNull Runnable runnable, @NonNull VapTaskPriority priority, @Nullable String host) {
+        Job job;
+        synchronized (this) {
+            job = new Job(runnable, priority, host, nextSequence++);
+            readyJobs.add(job);
+        }
+        promoteAndExecute();
+        return job;
+    }
+
+    /**
+     * Queues the runnable once the delay has passed. Until then the job can be reordered or removed like a queued one.
+     *
+     * @see #submit(Runnable, VapTaskPriority, String)
+     */
+    @NonNull
+    public Job submit(@NonNull Runnable runnable, @NonNull VapTaskPriority priority, @Nullable String host,
+                      long delayMs) {
+        if (delayMs <= 0) {
+            return submit(runnable, priority, host);
+        }
+        Job job;
+        synchronized (this) {
+            job = new Job(runnable, priority, host, nextSequence++);
+            delayedJobs.add(job);
+        }
+        timer.schedule(() -> enqueue(job), delayMs, TimeUnit.MILLISECONDS);
+        return job;
+    }
+
+    /**
+     * Hands the command to an executor other than this scheduler once the delay has passed.
+     */
+    void executeLater(@NonNull Executor executor, @NonNull Runnable command, long delayMs) {
+        timer.schedule(() -> executor.execute(command), delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void enqueue(Job job) {
+        synchronized (this) {
+            if (!delayedJobs.remove(job)) {
+                // The job has been removed in the meantime.
+                return;
+            }
+            readyJobs.add(job);
+        }
+        promoteAndExecute();
+    }
+
+    /**
+     * Changes the priority of a job.
+     *
+     * @return true if the job was still queued and has been moved accordingly.
+     */
+    public synchronized boolean setPriority(@NonNull Job job, @NonNull VapTaskPriority priority) {
+        if (delayedJobs.contains(job)) {
+            job.priority = priority;
+            return true;
+        }
+        if (job.priority == priority) {
+            return readyJobs.contains(job);
+        }
+        boolean queued = readyJobs.remove(job);
+        job.priority = priority;
+        if (queued) {
+            readyJobs.add(job);
+        }
+        return queued;
+    }
+
+    /**
+     * Removes a job that hasn't started yet.
+     *
+     * @return true if the job was still queued or delayed and will never run.
+     */
+    public synchronized boolean remove(@NonNull Job job) {
+        return delayedJobs.remove(job) || readyJobs.remove(job);
+    }
+
+    /**
+     * Charges up to {@code count} additional connections against the limit of the host, without waiting.
+     * Every acquired connection must be given back with {@link #releaseHostConnections(String, int)}.
+     *
+     * @return the number of connections acquired, which may be 0 if the host is at its limit.
+     */
+    public int acquireHostConnections(@Nullable String host, int count) {
+        if (host == null || count <= 0) {
+            return 0;
+        }
+        synchronized (this) {
+            int acquired = Math.max(0, Math.min(count, maxConcurrencyPerHost - runningJobsForHost(host)));
+            if (acquired > 0) {
+                runningJobsPerHost.put(host, runningJobsForHost(host) + acquired);
+            }
+            return acquired;
+        }
+    }
+
+    public void releaseHostConnections(@Nullable String host, int count) {
+        if (host == null || count <= 0) {
+            return;
+        }
+        synchronized (this) {
+            releaseForHost(host, count);
+        }
+        promoteAndExecute();
+    }
+
+    /**
+     * Moves eligible jobs from the queue to the worker threads, highest priority first.
+     * Jobs whose host or budget is at its limit stay queued without blocking the other jobs.
+     */
+    private void promoteAndExecute() {
+        List<Job> executableJobs = new ArrayList<>();
+        synchronized (this) {
+            List<Job> skippedJobs = null;
+            while ((runningNetworkJobs < maxConcurrency || runningLocalJobs < maxLocalConcurrency)
+                    && !readyJobs.isEmpty()) {
+                Job job = readyJobs.poll();
+                boolean eligible = job.host == null ? runningLocalJobs < maxLocalConcurrency
+                        : runningNetworkJobs < maxConcurrency && runningJobsForHost(job.host) < maxConcurrencyPerHost;
+                if (!eligible) {
+                    if (skippedJobs == null) {
+                        skippedJobs = new ArrayList<>();
+                    }
+                    skippedJobs.add(job);
+                    continue;
+                }
+                if (job.host == null) {
+                    runningLocalJobs++;
+                } else {
+                    runningNetworkJobs++;
+                    runningJobsPerHost.put(job.host, runningJobsForHost(job.host) + 1);
+                }
+                executableJobs.add(job);
+            }
+            if (skippedJobs != null) {
+                readyJobs.addAll(skippedJobs);
+            }
+        }
+
+        for (Job job : executableJobs) {
+            workers.execute(() -> {
+                try {
+                    job.runnable.run();
+                } finally {
+                    finished(job);
+                }
+            });
+        }
+    }
+
+    private void finished(Job job) {
+        synchronized (this) {
+            if (job.host == null) {
+                runningLocalJobs--;
+            } else {
+                runningNetworkJobs--;
+                releaseForHost(job.host, 1);
+            }
+        }
+        promoteAndExecute();
+    }
+
+    private void releaseForHost(String host, int released) {
+        int count = runningJobsForHost(host) - released;
+        if (count <= 0) {
+            runningJobsPerHost.remove(host);
+        } else {
+            runningJobsPerHost.put(host, count);
+        }
+    }
+
+    private int runningJobsForHost(String host) {
+        Integer count = runningJobsPerHost.get(host);
+        return count == null ? 0 : count;
+    }
+
+    /**
+     * A job submitted to the scheduler.
+     */
+    public static final class Job implements Comparable<Job> {
+
+        @NonNull
+        final Runnable runnable;
+        @Nullable
+        final String host;
+        final long sequence;
+        @NonNull
+        VapTaskPriority priority;
+
+        Job(@NonNull Runnable runnable, @NonNull VapTaskPriority priority, @Nullable String host, long sequence) {
+            this.runnable = runnable;
+            this.priority = priority;
+            this.host = host;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Job other) {
+            int result = other.priority.compareTo(priority);
+            if (result != 0) {
+                return result;
+            }
+            return Long.compare(sequence, other.sequence);
+        }
+
+    }
+
+    private static class ThreadFactoryImpl implements ThreadFactory {
+
+        private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+        @Override
+        public Thread newThread(@NonNull Runnable r) {
+            Thread thread = new Thread(() -> {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                r.run();
+            }, "VapTask-" + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+
+    }
+
+}
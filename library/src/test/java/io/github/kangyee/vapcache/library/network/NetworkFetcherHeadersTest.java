@@ -0,0 +1,136 @@
+package io.github.kangyee.vapcache.library.network;
+
+import static org.junit.Assert.assertEquals;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+public class NetworkFetcherHeadersTest {
+
+    private static final long NOW = 1_700_000_000_000L;
+
+    @Test
+    public void maxAgeIsRelativeToNow() {
+        assertEquals(NOW + 60_000, NetworkFetcher.expiresAt(response("Cache-Control", "public, max-age=60"), NOW));
+        assertEquals(NOW + 30_000, NetworkFetcher.expiresAt(response("Cache-Control", "max-age=\"30\""), NOW));
+        assertEquals(NOW + 60_000, NetworkFetcher.expiresAt(response("Cache-Control", "MAX-AGE=60"), NOW));
+    }
+
+    @Test
+    public void ageIsSubtractedFromMaxAge() {
+        assertEquals(NOW + 40_000, NetworkFetcher.expiresAt(
+                response("Cache-Control", "max-age=60", "Age", "20"), NOW));
+        assertEquals(NOW, NetworkFetcher.expiresAt(response("Cache-Control", "max-age=60", "Age", "90"), NOW));
+        assertEquals(NOW + 60_000, NetworkFetcher.expiresAt(
+                response("Cache-Control", "max-age=60", "Age", "soon"), NOW));
+    }
+
+    @Test
+    public void noCacheAndNoStoreExpireRightAway() {
+        assertEquals(NOW, NetworkFetcher.expiresAt(response("Cache-Control", "no-cache"), NOW));
+        assertEquals(NOW, NetworkFetcher.expiresAt(response("Cache-Control", "max-age=60, no-store"), NOW));
+    }
+
+    @Test
+    public void maxAgeTakesPrecedenceOverExpires() {
+        assertEquals(NOW + 60_000, NetworkFetcher.expiresAt(response("Cache-Control", "max-age=60",
+                "Expires", "Wed, 21 Oct 2015 07:28:00 GMT"), NOW));
+    }
+
+    @Test
+    public void expiresIsRelativeToTheServerDate() {
+        assertEquals(NOW + 3_600_000, NetworkFetcher.expiresAt(response(
+                "Date", "Wed, 21 Oct 2015 07:28:00 GMT",
+                "Expires", "Wed, 21 Oct 2015 08:28:00 GMT"), NOW));
+        // Without a Date header the server clock is unknown, the date is taken as is.
+        assertEquals(1_445_412_480_000L, NetworkFetcher.expiresAt(
+                response("Expires", "Wed, 21 Oct 2015 07:28:00 GMT"), NOW));
+    }
+
+    @Test
+    public void invalidExpiresMeansExpired() {
+        assertEquals(NOW, NetworkFetcher.expiresAt(response("Expires", "0"), NOW));
+        // An unparsable max-age falls back to Expires.
+        assertEquals(NOW, NetworkFetcher.expiresAt(response("Cache-Control", "max-age=abc", "Expires", "-1"), NOW));
+    }
+
+    @Test
+    public void missingFreshnessInformationIsUnknown() {
+        assertEquals(-1, NetworkFetcher.expiresAt(response(), NOW));
+        assertEquals(-1, NetworkFetcher.expiresAt(response("Cache-Control", "public"), NOW));
+    }
+
+    @Test
+    public void parsesContentRange() {
+        VapFetchResult partial = response("Content-Range", "bytes 1048576-5242879/5242880");
+        assertEquals(1_048_576, NetworkFetcher.contentRangeStart(partial));
+        assertEquals(5_242_880, NetworkFetcher.contentRangeTotal(partial));
+
+        VapFetchResult unknownLength = response("Content-Range", "bytes 0-99/*");
+        assertEquals(0, NetworkFetcher.contentRangeStart(unknownLength));
+        assertEquals(-1, NetworkFetcher.contentRangeTotal(unknownLength));
+    }
+
+    @Test
+    public void malformedContentRangeIsUnknown() {
+        assertEquals(-1, NetworkFetcher.contentRangeStart(response()));
+        assertEquals(-1, NetworkFetcher.contentRangeTotal(response()));
+        assertEquals(-1, NetworkFetcher.contentRangeStart(response("Content-Range", "items 0-99/100")));
+        // Sent with 416 Range Not Satisfiable.
+        assertEquals(-1, NetworkFetcher.contentRangeStart(response("Content-Range", "bytes */100")));
+        assertEquals(100, NetworkFetcher.contentRangeTotal(response("Content-Range", "bytes */100")));
+        assertEquals(-1, NetworkFetcher.contentRangeStart(response("Content-Range", "bytes x-99/100")));
+    }
+
+    /**
+     * Returns a successful response with the given header names and values.
+     */
+    private static VapFetchResult response(String... headers) {
+        Map<String, String> map = new HashMap<>();
+        for (int i = 0; i < headers.length; i += 2) {
+            map.put(headers[i], headers[i + 1]);
+        }
+        return new FakeFetchResult(map);
+    }
+
+    private static final class FakeFetchResult implements VapFetchResult {
+
+        private final Map<String, String> headers;
+
+        FakeFetchResult(Map<String, String> headers) {
+            this.headers = headers;
+        }
+
+        @Override public boolean isSuccessful() {
+            return true;
+        }
+
+        @NonNull @Override public InputStream bodyByteStream() {
+            return new ByteArrayInputStream(new byte[0]);
+        }
+
+        @Nullable @Override public String header(@NonNull String name) {
+            return headers.get(name);
+        }
+
+        @Nullable @Override public String contentType() {
+            return null;
+        }
+
+        @Nullable @Override public String error() {
+            return null;
+        }
+
+        @Override public void close() {
+        }
+
+    }
+
+}
@@ -0,0 +1,190 @@
+package io.github.kangyee.vapcache.library.network;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+public class VapDiskLruCacheTest {
+
+    private static final String A = "0/a/vap_cache_0a000000000000000000000000000000.mp4";
+    private static final String B = "1/b/vap_cache_1b000000000000000000000000000000.mp4";
+    private static final String C = "2/c/vap_cache_2c000000000000000000000000000000.mp4";
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private File directory;
+    private final List<VapDiskLruCache> caches = new ArrayList<>();
+
+    @Before
+    public void setUp() throws IOException {
+        directory = temporaryFolder.newFolder("vap_network_cache");
+    }
+
+    @After
+    public void tearDown() {
+        for (VapDiskLruCache cache : caches) {
+            cache.reset();
+        }
+    }
+
+    @Test
+    public void replaysWritesAndRemovals() throws IOException {
+        VapDiskLruCache cache = open(1000);
+        cache.recordWrite(writeFile(A, 100), 100);
+        cache.recordWrite(writeFile(B, 200), 200);
+        cache.recordWrite(writeFile(C, 300), 300);
+        cache.remove(B);
+        cache.reset();
+
+        VapDiskLruCache reopened = open(1000);
+        assertTrue(reopened.contains(A));
+        assertFalse(reopened.contains(B));
+        assertTrue(reopened.contains(C));
+        assertEquals(400, reopened.size());
+        assertFalse(new File(directory, B).exists());
+    }
+
+    @Test
+    public void replaysTheAccessOrder() throws Exception {
+        VapDiskLruCache cache = open(1000);
+        cache.recordWrite(writeFile(A, 100), 100);
+        cache.recordWrite(writeFile(B, 100), 100);
+        cache.recordWrite(writeFile(C, 100), 100);
+        assertTrue(cache.recordRead(A));
+        cache.reset();
+
+        VapDiskLruCache reopened = open(1000);
+        reopened.setMaxSize(250);
+        awaitCondition(() -> reopened.size() <= 250);
+        assertTrue(reopened.contains(A));
+        assertFalse(reopened.contains(B));
+        assertTrue(reopened.contains(C));
+        assertFalse(new File(directory, B).exists());
+    }
+
+    @Test
+    public void dropsEntriesWhoseFileIsGone() throws IOException {
+        VapDiskLruCache cache = open(1000);
+        cache.recordWrite(writeFile(A, 100), 100);
+        cache.recordWrite(writeFile(B, 200), 200);
+        cache.reset();
+        assertTrue(new File(directory, B).delete());
+
+        VapDiskLruCache reopened = open(1000);
+        assertTrue(reopened.contains(A));
+        assertFalse(reopened.contains(B));
+        assertEquals(100, reopened.size());
+    }
+
+    @Test
+    public void rebuildsACorruptJournalFromTheFiles() throws IOException {
+        writeFile(A, 100);
+        writeFile(B, 200);
+        writeJournal("not a journal\n");
+
+        VapDiskLruCache cache = open(1000);
+        assertTrue(cache.contains(A));
+        assertTrue(cache.contains(B));
+        assertEquals(300, cache.size());
+        List<String> lines = journalLines();
+        assertEquals(VapDiskLruCache.MAGIC, lines.get(0));
+        assertEquals(VapDiskLruCache.VERSION, lines.get(1));
+    }
+
+    @Test
+    public void dropsAnIncompleteLastLine() throws Exception {
+        writeFile(A, 100);
+        writeFile(B, 100);
+        writeFile(C, 100);
+        // A crash while the last access to B was appended.
+        writeJournal(VapDiskLruCache.MAGIC + "\n" + VapDiskLruCache.VERSION + "\n\n"
+                + "CLEAN " + A + " 100\nCLEAN " + B + " 100\nCLEAN " + C + " 100\nREAD " + A + "\nREAD 1/b/vap_ca");
+
+        VapDiskLruCache cache = open(1000);
+        assertEquals(300, cache.size());
+        // The journal is compacted instead of appended to.
+        assertEquals(6, journalLines().size());
+        cache.setMaxSize(250);
+        awaitCondition(() -> cache.size() <= 250);
+        // The access order of the complete lines is kept.
+        assertFalse(cache.contains(B));
+        assertTrue(cache.contains(C));
+        assertTrue(cache.contains(A));
+    }
+
+    @Test
+    public void compactsARedundantJournal() throws Exception {
+        VapDiskLruCache cache = open(1000);
+        cache.recordWrite(writeFile(A, 100), 100);
+        cache.recordWrite(writeFile(B, 200), 200);
+        for (int i = 0; i < 2000; i++) {
+            cache.recordRead(i % 2 == 0 ? A : B);
+        }
+        // The header and one CLEAN line per entry.
+        awaitCondition(() -> journalLines().size() == 5);
+        cache.reset();
+
+        VapDiskLruCache reopened = open(1000);
+        assertTrue(reopened.contains(A));
+        assertTrue(reopened.contains(B));
+        assertEquals(300, reopened.size());
+    }
+
+    private VapDiskLruCache open(long maxSize) {
+        VapDiskLruCache cache = new VapDiskLruCache(directory, maxSize);
+        caches.add(cache);
+        assertTrue(cache.initialize());
+        return cache;
+    }
+
+    private String writeFile(String key, int length) throws IOException {
+        File file = new File(directory, key);
+        assertTrue(file.getParentFile().isDirectory() || file.getParentFile().mkdirs());
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(new byte[length]);
+        }
+        return key;
+    }
+
+    private void writeJournal(String content) throws IOException {
+        Files.write(new File(directory, VapDiskLruCache.JOURNAL_FILE).toPath(),
+                content.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private List<String> journalLines() throws IOException {
+        return Files.readAllLines(new File(directory, VapDiskLruCache.JOURNAL_FILE).toPath(),
+                StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Eviction and compaction run on the cache's own thread.
+     */
+    private static void awaitCondition(Callable<Boolean> condition) throws Exception {
+        long deadline = System.currentTimeMillis() + 5_000;
+        while (!condition.call()) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("Timed out waiting for the cache.");
+            }
+            Thread.sleep(10);
+        }
+    }
+
+}
@@ -0,0 +1,99 @@
+package io.github.kangyee.vapcache.library.network;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+public class VapFailureCacheTest {
+
+    private static final String URL = "https://example.com/anim.mp4";
+
+    private final VapFailureCache failureCache = new VapFailureCache();
+
+    @Test
+    public void serverErrorsBackOffExponentially() {
+        for (int failures = 1; failures <= 8; failures++) {
+            failureCache.onFailure(URL, 503, null);
+            long delay = 1_000L << (failures - 1);
+            assertBackoffBetween(delay / 2, delay);
+        }
+    }
+
+    @Test
+    public void clientErrorsBackOffFromALongerDelay() {
+        failureCache.onFailure(URL, 404, null);
+        assertBackoffBetween(5_000, 10_000);
+        failureCache.onFailure(URL, 404, null);
+        assertBackoffBetween(10_000, 20_000);
+    }
+
+    @Test
+    public void backoffIsCapped() {
+        for (int failures = 0; failures < 40; failures++) {
+            failureCache.onFailure(URL, 500, null);
+        }
+        assertBackoffBetween(5 * 60_000, 10 * 60_000);
+    }
+
+    @Test
+    public void retryAfterExtendsTheBackoff() {
+        failureCache.onFailure(URL, 503, "120");
+        assertBackoffBetween(120_000, 120_000);
+    }
+
+    @Test
+    public void retryAfterIsCapped() {
+        failureCache.onFailure(URL, 429, "86400");
+        assertBackoffBetween(10 * 60_000, 10 * 60_000);
+    }
+
+    @Test
+    public void onlyErrorsAreRecorded() {
+        failureCache.onFailure(URL, 304, "120");
+        failureCache.onFailure(URL, -1, null);
+        assertEquals(0, failureCache.remainingBackoffMs(URL));
+    }
+
+    @Test
+    public void throwsWhileBackingOff() {
+        failureCache.onFailure(URL, 503, null);
+        try {
+            failureCache.throwIfBackingOff(URL);
+            fail("Expected a BackoffException.");
+        } catch (VapFailureCache.BackoffException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void successForgetsEveryFailure() throws VapFailureCache.BackoffException {
+        failureCache.onFailure(URL, 404, null);
+        failureCache.onFailure(URL, 503, null);
+        failureCache.onSuccess(URL);
+        assertEquals(0, failureCache.remainingBackoffMs(URL));
+        failureCache.throwIfBackingOff(URL);
+
+        // The next failure starts from the base delay again.
+        failureCache.onFailure(URL, 503, null);
+        assertBackoffBetween(500, 1_000);
+    }
+
+    @Test
+    public void parsesRetryAfterSeconds() {
+        assertEquals(120_000, VapFailureCache.retryAfterMillis("120"));
+        assertEquals(5_000, VapFailureCache.retryAfterMillis(" 5 "));
+        assertEquals(0, VapFailureCache.retryAfterMillis("-3"));
+        assertEquals(0, VapFailureCache.retryAfterMillis(null));
+        // HTTP dates aren't understood.
+        assertEquals(0, VapFailureCache.retryAfterMillis("Wed, 21 Oct 2015 07:28:00 GMT"));
+    }
+
+    private void assertBackoffBetween(long min, long max) {
+        long remaining = failureCache.remainingBackoffMs(URL);
+        assertTrue("Backoff " + remaining + " ms isn't within [" + min + ", " + max + "]",
+                remaining >= min && remaining <= max);
+    }
+
+}
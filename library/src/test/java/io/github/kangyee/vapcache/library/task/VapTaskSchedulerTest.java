@@ -0,0 +1,168 @@
+package io.github.kangyee.vapcache.library.task;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class VapTaskSchedulerTest {
+
+    private static final String HOST = "a.example.com";
+
+    private final VapTaskScheduler scheduler = VapTaskScheduler.getInstance();
+    private final List<String> started = Collections.synchronizedList(new ArrayList<>());
+
+    @After
+    public void tearDown() {
+        scheduler.setMaxConcurrency(VapTaskScheduler.DEFAULT_MAX_CONCURRENCY,
+                VapTaskScheduler.DEFAULT_MAX_CONCURRENCY_PER_HOST);
+        scheduler.setMaxLocalConcurrency(VapTaskScheduler.DEFAULT_MAX_LOCAL_CONCURRENCY);
+    }
+
+    @Test
+    public void runsQueuedJobsByPriority() throws InterruptedException {
+        scheduler.setMaxConcurrency(1, 1);
+        CountDownLatch blocker = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(5);
+        scheduler.submit(job("blocker", blocker, done), VapTaskPriority.NORMAL, HOST);
+
+        scheduler.submit(job("low", null, done), VapTaskPriority.LOW, HOST);
+        scheduler.submit(job("normal 1", null, done), VapTaskPriority.NORMAL, HOST);
+        scheduler.submit(job("high", null, done), VapTaskPriority.HIGH, HOST);
+        scheduler.submit(job("normal 2", null, done), VapTaskPriority.NORMAL, HOST);
+        blocker.countDown();
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("blocker", "high", "normal 1", "normal 2", "low"), started);
+    }
+
+    @Test
+    public void reordersQueuedJobs() throws InterruptedException {
+        scheduler.setMaxConcurrency(1, 1);
+        CountDownLatch blocker = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(3);
+        scheduler.submit(job("blocker", blocker, done), VapTaskPriority.NORMAL, HOST);
+
+        scheduler.submit(job("normal", null, done), VapTaskPriority.NORMAL, HOST);
+        VapTaskScheduler.Job prefetch = scheduler.submit(job("prefetch", null, done), VapTaskPriority.LOW, HOST);
+        assertTrue(scheduler.setPriority(prefetch, VapTaskPriority.HIGH));
+        blocker.countDown();
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("blocker", "prefetch", "normal"), started);
+    }
+
+    @Test
+    public void aHostAtItsLimitDoesNotBlockOtherHosts() throws InterruptedException {
+        scheduler.setMaxConcurrency(2, 1);
+        CountDownLatch blocker = new CountDownLatch(1);
+        CountDownLatch otherHostDone = new CountDownLatch(1);
+        CountDownLatch sameHostDone = new CountDownLatch(1);
+        scheduler.submit(job("a 1", blocker, null), VapTaskPriority.NORMAL, "a.example.com");
+
+        scheduler.submit(job("a 2", null, sameHostDone), VapTaskPriority.HIGH, "a.example.com");
+        scheduler.submit(job("b 1", null, otherHostDone), VapTaskPriority.LOW, "b.example.com");
+
+        assertTrue(otherHostDone.await(5, TimeUnit.SECONDS));
+        assertFalse(started.contains("a 2"));
+        blocker.countDown();
+        assertTrue(sameHostDone.await(5, TimeUnit.SECONDS));
+        assertEquals(3, started.size());
+        assertEquals("a 2", started.get(2));
+    }
+
+    @Test
+    public void runsJobsOfTheSameHostInOrder() throws InterruptedException {
+        scheduler.setMaxConcurrency(4, 1);
+        CountDownLatch blocker = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(3);
+        scheduler.submit(job("1", blocker, done), VapTaskPriority.NORMAL, "a.example.com");
+
+        scheduler.submit(job("2", null, done), VapTaskPriority.NORMAL, "a.example.com");
+        scheduler.submit(job("3", null, done), VapTaskPriority.NORMAL, "a.example.com");
+        blocker.countDown();
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("1", "2", "3"), started);
+    }
+
+    @Test
+    public void extraHostConnectionsCountAgainstTheHostLimit() throws InterruptedException {
+        scheduler.setMaxConcurrency(4, 2);
+        assertEquals(2, scheduler.acquireHostConnections("a.example.com", 3));
+        assertEquals(0, scheduler.acquireHostConnections("a.example.com", 1));
+
+        CountDownLatch done = new CountDownLatch(1);
+        scheduler.submit(job("a", null, done), VapTaskPriority.HIGH, "a.example.com");
+        assertFalse(done.await(100, TimeUnit.MILLISECONDS));
+        scheduler.releaseHostConnections("a.example.com", 2);
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void removedJobsNeverRun() throws InterruptedException {
+        scheduler.setMaxConcurrency(1, 1);
+        CountDownLatch blocker = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(2);
+        scheduler.submit(job("blocker", blocker, done), VapTaskPriority.NORMAL, HOST);
+
+        VapTaskScheduler.Job removed = scheduler.submit(job("removed", null, null), VapTaskPriority.HIGH, HOST);
+        scheduler.submit(job("kept", null, done), VapTaskPriority.NORMAL, HOST);
+        assertTrue(scheduler.remove(removed));
+        blocker.countDown();
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertFalse(scheduler.remove(removed));
+        assertEquals(Arrays.asList("blocker", "kept"), started);
+    }
+
+    @Test
+    public void jobsWithoutAHostHaveTheirOwnBudget() throws InterruptedException {
+        scheduler.setMaxConcurrency(1, 1);
+        scheduler.setMaxLocalConcurrency(1);
+        CountDownLatch blocker = new CountDownLatch(1);
+        CountDownLatch localDone = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(2);
+        scheduler.submit(job("download", blocker, done), VapTaskPriority.NORMAL, HOST);
+
+        scheduler.submit(job("asset 1", blocker, done), VapTaskPriority.NORMAL, null);
+        scheduler.submit(job("asset 2", null, localDone), VapTaskPriority.NORMAL, null);
+        assertFalse(localDone.await(100, TimeUnit.MILLISECONDS));
+        assertEquals(2, started.size());
+        blocker.countDown();
+
+        assertTrue(localDone.await(5, TimeUnit.SECONDS));
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals("asset 2", started.get(2));
+    }
+
+    /**
+     * Returns a job that records its start, then waits for the blocker if there is one.
+     */
+    private Runnable job(String name, CountDownLatch blocker, CountDownLatch done) {
+        return () -> {
+            started.add(name);
+            try {
+                if (blocker != null) {
+                    blocker.await();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                if (done != null) {
+                    done.countDown();
+                }
+            }
+        };
+    }
+
+}